@@ -1,22 +1,154 @@
 package com.lorenzostanco.utils;
 
+import android.content.ComponentCallbacks2;
 import android.content.res.AssetManager;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.util.LruCache;
 
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Carica in memoria immagini da file e risorse nel modo più efficiente possibile.
+ * Opzionalmente usa una cache in memoria, vedi {@link #setMemoryCache(MemoryCache)}, e un pool
+ * di bitmap da riusare per decodificare senza allocare, vedi {@link #setBitmapPool(BitmapPool)}.
  */
 @SuppressWarnings("unused") public final class BitmapLoader {
 
 	public final static boolean LOG = true;
 	public final static String TAG = "BITMAP-LOADER";
 
+	// Cache in memoria condivisa, NULL se disabilitata
+	private static volatile MemoryCache memoryCache = null;
+
+	// Pool di bitmap da riusare, NULL se disabilitato
+	private static volatile BitmapPool bitmapPool = null;
+
+	// Thread che decodificano in background, tanti quanti i core, e caricamenti in corso per chiave, sincronizzati su se stessi
+	private final static int DECODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+	private final static ThreadPoolExecutor decodeExecutor = new ThreadPoolExecutor(DECODE_THREADS, DECODE_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+		@Override public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r, "BitmapLoader");
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final static Map<String, Job> runningJobs = new HashMap<>();
+	private static Handler mainHandler = null;
+
+	static {
+		decodeExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	// Buffer degli stream delle sorgenti, e quanto può tornare indietro reset() dopo aver letto le dimensioni
+	private final static int BUFFER_SIZE = 16 * 1024;
+	private final static int MARK_LIMIT = 1024 * 1024;
+
+	// Statistiche di I/O
+	private final static AtomicLong opens = new AtomicLong();
+	private final static AtomicLong bytesRead = new AtomicLong();
+	private final static AtomicLong decodes = new AtomicLong();
+
+	// Buffer temporaneo del decoder, uno per thread invece di uno per decodifica
+	private final static int TEMP_STORAGE_SIZE = 16 * 1024;
+	private final static ThreadLocal<byte[]> tempStorage = new ThreadLocal<>();
+
+	/**
+	 * Imposta la cache in memoria usata da tutti i load(), NULL per disabilitarla (default).
+	 * Le bitmap in cache sono condivise: chi le riceve non deve chiamare recycle().
+	 */
+	public static void setMemoryCache(final MemoryCache cache) {
+		memoryCache = cache;
+	}
+
+	/**
+	 * Ritorna la cache in memoria, NULL se disabilitata
+	 */
+	public static MemoryCache getMemoryCache() {
+		return memoryCache;
+	}
+
+	/**
+	 * Imposta il pool di bitmap riusate dai load(), NULL per disabilitarlo (default).
+	 * Le bitmap tornano nel pool solo con {@link #release(Bitmap)}.
+	 */
+	public static void setBitmapPool(final BitmapPool pool) {
+		bitmapPool = pool;
+	}
+
+	/**
+	 * Ritorna il pool di bitmap, NULL se disabilitato
+	 */
+	public static BitmapPool getBitmapPool() {
+		return bitmapPool;
+	}
+
+	/**
+	 * Ritorna il numero di volte che una sorgente è stata aperta dai load()
+	 */
+	public static long getOpenCount() {
+		return opens.get();
+	}
+
+	/**
+	 * Ritorna i byte letti dalle sorgenti dai load()
+	 */
+	public static long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Ritorna il numero di immagini decodificate dai load() (esclusi i risultati dalla cache in memoria)
+	 */
+	public static long getDecodeCount() {
+		return decodes.get();
+	}
+
+	/**
+	 * Azzera le statistiche di I/O
+	 */
+	public static void resetIOStats() {
+		opens.set(0);
+		bytesRead.set(0);
+		decodes.set(0);
+	}
+
+	/**
+	 * Restituisce una bitmap che non serve più, perché sia riusata dalle prossime decodifiche.
+	 * Senza pool, o se la bitmap non è riusabile, la libera con recycle(). Non va chiamato per
+	 * bitmap ancora visualizzate o ancora nella cache in memoria.
+	 */
+	public static void release(final Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) return;
+		final BitmapPool pool = bitmapPool;
+		if (pool == null || !pool.put(bitmap)) bitmap.recycle();
+	}
+
 	/** 
 	 * Carica un'immagine da file alla massima dimensione possibile (senza subsample).
 	 */
@@ -38,12 +170,7 @@ import java.io.InputStream;
 	 * @param destH Altezza del contenitore dell'immagine, 0 se non si conosce
 	 */
 	public static Bitmap load(final String path, final int destW, final int destH) {
-		final int[] size = getSize(path);
-		final BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inScaled = false;
-		options.inSampleSize = calculateSampleSize(size[0], size[1], destW, destH);
-		if (LOG) Log.i(TAG, String.format("Decoding from file, original size is (%d %d), output is downsampled by %d to fit (%d %d)", size[0], size[1], options.inSampleSize, destW, destH));
-		return BitmapFactory.decodeFile(path, options);
+		return load(fileSource(path), destW, destH);
 	}
 
 	/** 
@@ -53,12 +180,7 @@ import java.io.InputStream;
 	 * @param destH Altezza del contenitore dell'immagine, 0 se non si conosce
 	 */
 	public static Bitmap load(final Resources res, final int resId, final int destW, final int destH) {
-		final int[] size = getSize(res, resId);
-		final BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inScaled = false;
-		options.inSampleSize = calculateSampleSize(size[0], size[1], destW, destH);
-		if (LOG) Log.i(TAG, String.format("Decoding from resources, original size is (%d %d), output is downsampled by %d to fit (%d %d)", size[0], size[1], options.inSampleSize, destW, destH));
-		return BitmapFactory.decodeResource(res, resId, options);
+		return load(resourceSource(res, resId), destW, destH);
 	}
 
 	/** 
@@ -69,19 +191,216 @@ import java.io.InputStream;
 	 * @param destH Altezza del contenitore dell'immagine, 0 se non si conosce
 	 */
 	public static Bitmap load(final AssetManager assets, final String path, final int destW, final int destH) {
-		final int[] size = getSize(assets, path);
-		final BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inScaled = false;
-		options.inSampleSize = calculateSampleSize(size[0], size[1], destW, destH);
-		if (LOG) Log.i(TAG, String.format("Decoding from assets, original size is (%d %d), output is downsampled by %d to fit (%d %d)", size[0], size[1], options.inSampleSize, destW, destH));
+		return load(assetSource(assets, path), destW, destH);
+	}
+
+	/**
+	 * Carica un'immagine da file in background, vedi {@link #load(String, int, int)}. Immagini uguali
+	 * richieste più volte prima che siano pronte vengono decodificate una volta sola.
+	 * Da chiamare dal thread principale, dove viene chiamato anche il listener.
+	 * @return Il caricamento, da annullare ad esempio quando la view viene riciclata
+	 */
+	public static Task loadAsync(final String path, final int destW, final int destH, final ILoadListener listener) {
+		return loadAsync(fileSource(path), destW, destH, listener);
+	}
+
+	/**
+	 * Carica un'immagine dalle risorse in background, vedi {@link #loadAsync(String, int, int, ILoadListener)}
+	 */
+	public static Task loadAsync(final Resources res, final int resId, final int destW, final int destH, final ILoadListener listener) {
+		return loadAsync(resourceSource(res, resId), destW, destH, listener);
+	}
+
+	/**
+	 * Carica un'immagine dagli assets in background, vedi {@link #loadAsync(String, int, int, ILoadListener)}
+	 */
+	public static Task loadAsync(final AssetManager assets, final String path, final int destW, final int destH, final ILoadListener listener) {
+		return loadAsync(assetSource(assets, path), destW, destH, listener);
+	}
+
+	/**
+	 * Carica un'immagine da una sorgente qualsiasi, passando dalla cache in memoria se impostata
+	 */
+	private static Bitmap load(final Source source, final int destW, final int destH) {
+		return load(source, destW, destH, null);
+	}
+
+	/**
+	 * Carica un'immagine da una sorgente qualsiasi, per una decodifica in background che si può annullare anche
+	 * quando è già iniziata, NULL se annullata
+	 */
+	private static Bitmap load(final Source source, final int destW, final int destH, final Job job) {
+		final MemoryCache cache = memoryCache;
+
+		// Dimensioni originali, dalla cache se già lette
+		int[] size = cache != null ? cache.getSourceSize(source.key) : null;
+		Bitmap cached = size != null ? cache.get(source.key, calculateSampleSize(size[0], size[1], destW, destH)) : null;
+		if (cached != null) {
+			if (LOG) Log.i(TAG, String.format("Found in memory cache from %s, original size is (%d %d), wanted to fit (%d %d)", source.name, size[0], size[1], destW, destH));
+			return cached;
+		}
+
+		// Una sola apertura della sorgente: le dimensioni si leggono dall'intestazione, poi si torna all'inizio
+		// e i pixel si decodificano dallo stesso stream, senza rileggere dal disco quello che è già nel buffer
+		InputStream in = null;
+		final AtomicLong read = new AtomicLong();
 		try {
-			final InputStream is = assets.open(path);
-			final Bitmap ret = BitmapFactory.decodeStream(is, null, options);
-			is.close();
+			in = openSource(source, read);
+			if (size == null) {
+				in.mark(MARK_LIMIT);
+				final BitmapFactory.Options bounds = new BitmapFactory.Options();
+				bounds.inJustDecodeBounds = true;
+				bounds.inTempStorage = getTempStorage();
+				if (job != null && !job.decoding(bounds)) return null;
+				BitmapFactory.decodeStream(in, null, bounds);
+				size = new int[] { bounds.outWidth, bounds.outHeight };
+				in = rewind(source, in, read);
+				in.mark(0); // Disarma il mark, altrimenti il buffer crescerebbe fino a MARK_LIMIT durante la decodifica
+				if (cache != null && size[0] > 0 && size[1] > 0) {
+					cache.putSourceSize(source.key, size);
+					cached = cache.get(source.key, calculateSampleSize(size[0], size[1], destW, destH));
+					if (cached != null) return cached;
+				}
+			}
+			final int sampleSize = calculateSampleSize(size[0], size[1], destW, destH);
+
+			// Decodifica, in una bitmap del pool se ce n'è una compatibile
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inScaled = false;
+			options.inSampleSize = sampleSize;
+			options.inTempStorage = getTempStorage();
+			final BitmapPool pool = bitmapPool;
+			if (pool != null && size[0] > 0 && size[1] > 0) {
+				options.inMutable = true;
+				options.inBitmap = pool.get(size[0], size[1], sampleSize);
+			}
+			if (job != null && !job.decoding(options)) {
+				if (options.inBitmap != null) pool.unused(options.inBitmap);
+				return null;
+			}
+			if (LOG) Log.i(TAG, String.format("Decoding from %s, original size is (%d %d), output is downsampled by %d to fit (%d %d)%s", source.name, size[0], size[1], options.inSampleSize, destW, destH, options.inBitmap != null ? ", reusing a pooled bitmap" : ""));
+			Bitmap ret;
+			boolean reuseFailed = false;
+			try {
+				ret = BitmapFactory.decodeStream(in, null, options);
+			} catch (IllegalArgumentException x) {
+				ret = null;
+				reuseFailed = options.inBitmap != null; // Bitmap del pool non compatibile
+			}
+
+			// Se il riuso non è possibile (formato o configurazione diversi) decodifica di nuovo senza,
+			// tornando all'inizio se è ancora nel buffer o riaprendo la sorgente (succede di rado)
+			if (reuseFailed) {
+				pool.reuseFailed(options.inBitmap);
+				options.inBitmap = null;
+				in = rewind(source, in, read);
+				ret = BitmapFactory.decodeStream(in, null, options);
+
+			// Se invece la sorgente non è decodificabile la bitmap del pool è ancora buona, e ci torna
+			} else if (ret == null && options.inBitmap != null) {
+				pool.unused(options.inBitmap);
+			}
+			decodes.incrementAndGet();
+			if (LOG) Log.i(TAG, String.format("Read %d bytes from %s", read.get(), source.name));
+			if (cache != null && ret != null) cache.put(source.key, sampleSize, ret);
 			return ret;
+
 		} catch (IOException x) {
 			return null;
+		} finally {
+			if (in != null) try {
+				in.close();
+			} catch (IOException ignored) { }
+		}
+	}
+
+	/**
+	 * Apre una sorgente con uno stream che supporta mark() e reset(), e conta i byte letti dalla sorgente, anche in un
+	 * contatore dato. Il buffer è sempre sopra il conteggio, così i byte riletti dopo reset() non sono contati due volte.
+	 */
+	private static InputStream openSource(final Source source, final AtomicLong counter) throws IOException {
+		opens.incrementAndGet();
+		final InputStream counting = new FilterInputStream(source.open()) {
+			@Override public int read() throws IOException {
+				final int b = super.read();
+				if (b >= 0) count(1);
+				return b;
+			}
+			@Override public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+				final int read = super.read(buffer, offset, length);
+				if (read > 0) count(read);
+				return read;
+			}
+			private void count(final int read) {
+				bytesRead.addAndGet(read);
+				counter.addAndGet(read);
+			}
+		};
+		return new BufferedInputStream(counting, BUFFER_SIZE);
+	}
+
+	/**
+	 * Torna all'inizio di uno stream con reset(), o se il mark non è più valido lo riapre
+	 */
+	private static InputStream rewind(final Source source, final InputStream in, final AtomicLong counter) throws IOException {
+		try {
+			in.reset();
+			return in;
+		} catch (IOException x) {
+			in.close();
+			return openSource(source, counter);
+		}
+	}
+
+	/**
+	 * Carica un'immagine in background, unendo le richieste uguali ancora in corso
+	 */
+	private static Task loadAsync(final Source source, final int destW, final int destH, final ILoadListener listener) {
+		final Task task = new Task(listener);
+
+		// Se è già nella cache in memoria non serve il background (se non c'è, il miss lo conta il load() in background)
+		final MemoryCache cache = memoryCache;
+		final int[] size = cache != null ? cache.getSourceSize(source.key) : null;
+		final Bitmap cached = size != null ? cache.find(source.key, calculateSampleSize(size[0], size[1], destW, destH)) : null;
+		if (cached != null) {
+			cache.hit();
+			task.done = true;
+			listener.onLoad(cached);
+			return task;
+		}
+
+		// Si aggiunge a un caricamento uguale in corso, o ne crea uno
+		final String key = source.key + "@" + destW + "x" + destH;
+		synchronized (runningJobs) {
+			Job job = runningJobs.get(key);
+			if (job == null) {
+				job = new Job(key);
+				runningJobs.put(key, job);
+				final Job newJob = job;
+				job.future = decodeExecutor.submit(new Runnable() {
+					@Override public void run() {
+						Bitmap bitmap = null;
+						try {
+							bitmap = load(source, destW, destH, newJob);
+						} finally {
+							newJob.deliver(bitmap);
+						}
+					}
+				});
+			}
+			task.job = job;
+			job.tasks.add(task);
 		}
+		return task;
+	}
+
+	/**
+	 * Ritorna il buffer temporaneo del decoder per il thread corrente
+	 */
+	private static byte[] getTempStorage() {
+		byte[] storage = tempStorage.get();
+		if (storage == null) tempStorage.set(storage = new byte[TEMP_STORAGE_SIZE]);
+		return storage;
 	}
 
 	/**
@@ -125,7 +444,7 @@ import java.io.InputStream;
 	 * (di dimensioni sourceWH) in un contenitore piccolo (di dimensioni destWH). Una delle 
 	 * dimensioni del contenitore può essere passata 0, verrà calcolata in base al caso peggiore. 
 	 */
-	private static int calculateSampleSize(final int sourceW, final int sourceH, int destW, int destH) {
+	static int calculateSampleSize(final int sourceW, final int sourceH, int destW, int destH) {
 		int inSampleSize = 1;
 		
 		// Se una delle dimensioni di destinazione non è data, calcolala
@@ -149,5 +468,495 @@ import java.io.InputStream;
 		return Math.max(inSampleSize, 1);
 		
 	}
-	
+
+	/**
+	 * Ritorna la sorgente di un file
+	 */
+	private static Source fileSource(final String path) {
+		return new Source("file", "file:" + path) {
+			@Override InputStream open() throws IOException {
+				return new FileInputStream(path);
+			}
+		};
+	}
+
+	/**
+	 * Ritorna la sorgente di una risorsa
+	 */
+	private static Source resourceSource(final Resources res, final int resId) {
+		return new Source("resources", "res:" + resId) {
+			@Override InputStream open() {
+				return res.openRawResource(resId);
+			}
+		};
+	}
+
+	/**
+	 * Ritorna la sorgente di un asset
+	 */
+	private static Source assetSource(final AssetManager assets, final String path) {
+		return new Source("assets", "asset:" + path) {
+			@Override InputStream open() throws IOException {
+				return assets.open(path);
+			}
+		};
+	}
+
+	/**
+	 * Sorgente di un'immagine (file, risorsa o asset), con la chiave che la identifica in cache
+	 */
+	private static abstract class Source {
+
+		private final String name;
+		private final String key;
+
+		private Source(final String name, final String key) {
+			this.name = name;
+			this.key = key;
+		}
+
+		/** Apre l'immagine */
+		abstract InputStream open() throws IOException;
+
+	}
+
+	/**
+	 * Pool di bitmap mutabili da riusare come Options.inBitmap, divise per dimensione in byte e
+	 * limitato in byte: le più vecchie vengono liberate per fare spazio. Da KitKat una bitmap è
+	 * riusabile se è grande almeno quanto l'immagine decodificata (fino a MAX_WASTE volte, per non
+	 * sprecare una bitmap grande per una miniatura), prima solo se ha esattamente le stesse dimensioni
+	 * e l'immagine non è sotto-campionata. Se il riuso fallisce, load() decodifica senza pool.
+	 *
+	 * <pre>
+	 * final BitmapLoader.BitmapPool pool = new BitmapLoader.BitmapPool(16 * 1024 * 1024);
+	 * getApplicationContext().registerComponentCallbacks(pool);
+	 * BitmapLoader.setBitmapPool(pool);
+	 * ...
+	 * BitmapLoader.release(oldBitmap); // Ad esempio quando una riga della lista viene riciclata
+	 * </pre>
+	 */
+	public static final class BitmapPool implements ComponentCallbacks2 {
+
+		public final static int MAX_WASTE = 4;
+
+		private final int maxBytes;
+
+		// Bitmap per dimensione in byte, e tutte in ordine di arrivo per liberare le più vecchie, sincronizzato su this
+		private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+		private final ArrayDeque<Bitmap> order = new ArrayDeque<>();
+		private int bytes = 0;
+
+		// Statistiche
+		private long hits = 0;
+		private long misses = 0;
+		private long failures = 0;
+		private long evictions = 0;
+		private long reusedBytes = 0;
+
+		/**
+		 * @param maxBytes Dimensione massima in byte delle bitmap nel pool
+		 */
+		public BitmapPool(final int maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		/** Aggiunge una bitmap al pool, ritorna false se non è riusabile */
+		private synchronized boolean put(final Bitmap bitmap) {
+			if (!bitmap.isMutable() || bitmap.getConfig() == null || bitmap.getConfig().name().equals("HARDWARE")) return false;
+			final int size = getBytes(bitmap);
+			if (size > maxBytes / 2) return false;
+			for (final Bitmap b : order) if (b == bitmap) return true;
+			ArrayDeque<Bitmap> bucket = buckets.get(size);
+			if (bucket == null) buckets.put(size, bucket = new ArrayDeque<>());
+			bucket.push(bitmap);
+			order.addLast(bitmap);
+			bytes += size;
+			trimToSize(maxBytes);
+			return true;
+		}
+
+		/** Toglie dal pool una bitmap riusabile per decodificare un'immagine, NULL se non c'è */
+		private synchronized Bitmap get(final int width, final int height, final int sampleSize) {
+			Bitmap found = null;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+
+				// Basta che sia grande abbastanza, ma non troppo (4 byte per pixel, il caso peggiore di ARGB_8888)
+				final long needed = (long)((width + sampleSize - 1) / sampleSize) * ((height + sampleSize - 1) / sampleSize) * 4;
+				if (needed <= Integer.MAX_VALUE) {
+					final Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.ceilingEntry((int)needed);
+					if (entry != null && entry.getKey() <= needed * MAX_WASTE) found = entry.getValue().pop();
+				}
+
+			} else if (sampleSize == 1) {
+
+				// Deve avere esattamente le stesse dimensioni
+				for (final Bitmap b : order) if (b.getWidth() == width && b.getHeight() == height) {
+					found = b;
+					buckets.get(getBytes(b)).remove(b);
+					break;
+				}
+
+			}
+			if (found == null) {
+				misses++;
+				return null;
+			}
+			final int size = getBytes(found);
+			if (buckets.get(size).isEmpty()) buckets.remove(size);
+			order.remove(found);
+			bytes -= size;
+			hits++;
+			reusedBytes += size;
+			return found;
+		}
+
+		/** Rimette nel pool una bitmap presa ma non usata, perché la decodifica è fallita per altri motivi */
+		private synchronized void unused(final Bitmap bitmap) {
+			hits--;
+			reusedBytes -= getBytes(bitmap);
+			put(bitmap);
+		}
+
+		/** Conta un riuso fallito, liberando la bitmap che non era compatibile */
+		private synchronized void reuseFailed(final Bitmap bitmap) {
+			hits--;
+			reusedBytes -= getBytes(bitmap);
+			failures++;
+			bitmap.recycle();
+		}
+
+		/** Libera le bitmap più vecchie finché il pool non sta nella dimensione data */
+		private synchronized void trimToSize(final int size) {
+			while (bytes > size && !order.isEmpty()) {
+				final Bitmap oldest = order.pollFirst();
+				final int b = getBytes(oldest);
+				final ArrayDeque<Bitmap> bucket = buckets.get(b);
+				bucket.remove(oldest);
+				if (bucket.isEmpty()) buckets.remove(b);
+				bytes -= b;
+				evictions++;
+				oldest.recycle();
+			}
+		}
+
+		private static int getBytes(final Bitmap bitmap) {
+			return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+		}
+
+		/** Svuota il pool, liberando le bitmap */
+		public void clear() {
+			trimToSize(0);
+		}
+
+		/** Ritorna la dimensione attuale in byte */
+		public synchronized int getSize() {
+			return bytes;
+		}
+
+		/** Ritorna la dimensione massima in byte */
+		public int getMaxSize() {
+			return maxBytes;
+		}
+
+		/** Ritorna il numero di decodifiche fatte in una bitmap del pool */
+		public synchronized long getHitCount() {
+			return hits;
+		}
+
+		/** Ritorna il numero di decodifiche che hanno dovuto allocare una nuova bitmap */
+		public synchronized long getMissCount() {
+			return misses;
+		}
+
+		/** Ritorna il numero di bitmap del pool che il decoder non ha potuto riusare */
+		public synchronized long getFailureCount() {
+			return failures;
+		}
+
+		/** Ritorna il numero di bitmap liberate per fare spazio */
+		public synchronized long getEvictionCount() {
+			return evictions;
+		}
+
+		/** Ritorna i byte di pixel non allocati grazie al riuso */
+		public synchronized long getReusedBytes() {
+			return reusedBytes;
+		}
+
+		/** Libera memoria secondo la richiesta del sistema: tutta se l'app è in background o la memoria è critica, metà altrimenti */
+		@Override public void onTrimMemory(final int level) {
+			if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) clear();
+			else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) trimToSize(maxBytes / 2);
+		}
+
+		@Override public void onLowMemory() {
+			clear();
+		}
+
+		@Override public void onConfigurationChanged(final Configuration configuration) { }
+
+		@Override public synchronized String toString() {
+			return String.format(Locale.US, "%d of %d bytes, %d hits, %d misses, %d failed reuses, %d evictions, %d bytes reused",
+				bytes, maxBytes, hits, misses, failures, evictions, reusedBytes);
+		}
+
+	}
+
+	/**
+	 * Cache LRU in memoria delle bitmap caricate, limitata in byte (secondo Bitmap.getByteCount()).
+	 * Le chiavi sono la sorgente (path, id della risorsa o path dell'asset) e il sample size: una
+	 * bitmap caricata con un sample size più piccolo, quindi più grande, vale anche per un contenitore
+	 * più piccolo. Ricorda anche le dimensioni originali delle sorgenti, per non rileggerle.
+	 * Registrala con Context.registerComponentCallbacks() per svuotarla quando la memoria scarseggia.
+	 *
+	 * <pre>
+	 * final BitmapLoader.MemoryCache cache = new BitmapLoader.MemoryCache((int)(Runtime.getRuntime().maxMemory() / 8));
+	 * getApplicationContext().registerComponentCallbacks(cache);
+	 * BitmapLoader.setMemoryCache(cache);
+	 * </pre>
+	 */
+	public static final class MemoryCache implements ComponentCallbacks2 {
+
+		public final static int MAX_SOURCE_SIZES = 512;
+
+		private final LruCache<String, Bitmap> bitmaps;
+		private final LruCache<String, int[]> sourceSizes = new LruCache<>(MAX_SOURCE_SIZES);
+
+		// Sample size in cache per ogni sorgente, sincronizzato su this
+		private final Map<String, TreeSet<Integer>> samples = new HashMap<>();
+
+		// Statistiche
+		private long hits = 0;
+		private long misses = 0;
+		private long evictions = 0;
+
+		/**
+		 * @param maxBytes Dimensione massima in byte, ad esempio 1/8 di Runtime.maxMemory()
+		 */
+		public MemoryCache(final int maxBytes) {
+			bitmaps = new LruCache<String, Bitmap>(maxBytes) {
+				@Override protected int sizeOf(final String key, final Bitmap bitmap) {
+					return bitmap.getByteCount();
+				}
+				@Override protected void entryRemoved(final boolean evicted, final String key, final Bitmap oldValue, final Bitmap newValue) {
+					if (newValue == null) removed(key, evicted);
+				}
+			};
+		}
+
+		/** Ritorna una bitmap della sorgente con il sample size dato, o uno più piccolo, NULL se non c'è */
+		private Bitmap get(final String source, final int sampleSize) {
+			final Bitmap bitmap = find(source, sampleSize);
+			synchronized (this) {
+				if (bitmap != null) hits++; else misses++;
+			}
+			return bitmap;
+		}
+
+		/** Come get(), ma senza contarlo nelle statistiche */
+		private Bitmap find(final String source, final int sampleSize) {
+			final Integer cached;
+			synchronized (this) {
+				final TreeSet<Integer> s = samples.get(source);
+				cached = s != null ? s.floor(sampleSize) : null;
+			}
+			return cached != null ? bitmaps.get(source + "#" + cached) : null;
+		}
+
+		private synchronized void hit() {
+			hits++;
+		}
+
+		private void put(final String source, final int sampleSize, final Bitmap bitmap) {
+			synchronized (this) {
+				TreeSet<Integer> s = samples.get(source);
+				if (s == null) samples.put(source, s = new TreeSet<>());
+				s.add(sampleSize);
+			}
+			bitmaps.put(source + "#" + sampleSize, bitmap);
+		}
+
+		/** Aggiorna l'indice dei sample size quando una bitmap esce dalla cache */
+		private synchronized void removed(final String key, final boolean evicted) {
+			if (evicted) evictions++;
+			final int hash = key.lastIndexOf('#');
+			final String source = key.substring(0, hash);
+			final TreeSet<Integer> s = samples.get(source);
+			if (s == null) return;
+			s.remove(Integer.valueOf(key.substring(hash + 1)));
+			if (s.isEmpty()) samples.remove(source);
+		}
+
+		private int[] getSourceSize(final String source) {
+			return sourceSizes.get(source);
+		}
+
+		private void putSourceSize(final String source, final int[] size) {
+			sourceSizes.put(source, size);
+		}
+
+		/** Svuota la cache */
+		public void clear() {
+			bitmaps.evictAll();
+			sourceSizes.evictAll();
+		}
+
+		/** Ritorna la dimensione attuale in byte */
+		public int getSize() {
+			return bitmaps.size();
+		}
+
+		/** Ritorna la dimensione massima in byte */
+		public int getMaxSize() {
+			return bitmaps.maxSize();
+		}
+
+		/** Ritorna il numero di load() serviti dalla cache */
+		public synchronized long getHitCount() {
+			return hits;
+		}
+
+		/** Ritorna il numero di load() che hanno dovuto decodificare */
+		public synchronized long getMissCount() {
+			return misses;
+		}
+
+		/** Ritorna il numero di bitmap uscite dalla cache per fare spazio */
+		public synchronized long getEvictionCount() {
+			return evictions;
+		}
+
+		/** Ritorna la frazione di load() serviti dalla cache, tra 0 e 1 */
+		public synchronized double getHitRate() {
+			return hits + misses > 0 ? (double)hits / (hits + misses) : 0;
+		}
+
+		/** Libera memoria secondo la richiesta del sistema: tutta se l'app è in background o la memoria è critica, metà altrimenti */
+		@Override public void onTrimMemory(final int level) {
+			if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) clear();
+			else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) bitmaps.trimToSize(bitmaps.maxSize() / 2);
+		}
+
+		@Override public void onLowMemory() {
+			clear();
+		}
+
+		@Override public void onConfigurationChanged(final Configuration configuration) { }
+
+		@Override public String toString() {
+			return String.format(Locale.US, "%d of %d bytes, %d hits, %d misses (%.0f%%), %d evictions",
+				getSize(), getMaxSize(), getHitCount(), getMissCount(), getHitRate() * 100, getEvictionCount());
+		}
+
+	}
+
+	/**
+	 * Listener di un caricamento in background
+	 */
+	public interface ILoadListener {
+
+		/** Quando l'immagine è pronta, sul thread principale. La bitmap è NULL se non è stato possibile caricarla,
+		 * ed è condivisa con gli altri che l'hanno richiesta insieme: non va chiamato release() finché serve a qualcuno. */
+		void onLoad(Bitmap bitmap);
+
+	}
+
+	/**
+	 * Un caricamento in background richiesto con loadAsync(), da annullare se l'immagine non serve più
+	 */
+	public static final class Task {
+
+		private final ILoadListener listener;
+
+		// Sul thread principale
+		private Job job = null;
+		private boolean done = false;
+		private boolean cancelled = false;
+
+		private Task(final ILoadListener listener) {
+			this.listener = listener;
+		}
+
+		/** Annulla il caricamento, il listener non verrà chiamato. La decodifica si ferma se nessun altro la aspetta. */
+		public void cancel() {
+			if (done || cancelled) return;
+			cancelled = true;
+			final Job job = this.job;
+			if (job != null) job.cancel(this);
+		}
+
+		/** Ritorna true se il caricamento è stato annullato */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/** Ritorna true se il listener è già stato chiamato */
+		public boolean isDone() {
+			return done;
+		}
+
+	}
+
+	/**
+	 * Una decodifica in background, condivisa da tutti i caricamenti uguali
+	 */
+	private static final class Job {
+
+		private final String key;
+		private final List<Task> tasks = new ArrayList<>(1); // Sincronizzato su runningJobs
+		private Future<?> future;
+
+		// Opzioni della decodifica in corso, per interromperla, e se è stata annullata, sincronizzati su this
+		private BitmapFactory.Options options = null;
+		private boolean cancelled = false;
+
+		private Job(final String key) {
+			this.key = key;
+		}
+
+		/** Toglie un caricamento, e annulla la decodifica se era l'ultimo: la toglie dalla coda, o la interrompe se è già iniziata */
+		private void cancel(final Task task) {
+			synchronized (runningJobs) {
+				tasks.remove(task);
+				if (!tasks.isEmpty()) return;
+				if (runningJobs.get(key) == this) runningJobs.remove(key);
+			}
+			if (future.cancel(false)) decodeExecutor.remove((Runnable)future);
+			synchronized (this) {
+				cancelled = true;
+				if (options != null) options.requestCancelDecode(); // Da Android 7 non ha effetto, resta il controllo tra le fasi
+			}
+		}
+
+		/** In background: registra le opzioni della fase di decodifica che sta per iniziare, ritorna false se annullata */
+		private synchronized boolean decoding(final BitmapFactory.Options options) {
+			this.options = options;
+			return !cancelled;
+		}
+
+		/** In background: consegna il risultato sul thread principale a chi lo aspetta ancora */
+		private void deliver(final Bitmap bitmap) {
+			synchronized (runningJobs) {
+				if (runningJobs.get(key) == this) runningJobs.remove(key);
+			}
+			synchronized (BitmapLoader.class) {
+				if (mainHandler == null) mainHandler = new Handler(Looper.getMainLooper());
+			}
+			mainHandler.post(new Runnable() {
+				@Override public void run() {
+					final List<Task> waiting;
+					synchronized (runningJobs) {
+						waiting = new ArrayList<>(tasks);
+						tasks.clear();
+					}
+					for (final Task task : waiting) if (!task.cancelled) {
+						task.done = true;
+						task.listener.onLoad(bitmap);
+					}
+				}
+			});
+		}
+
+	}
+
 }
@@ -0,0 +1,340 @@
+package com.lorenzostanco.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Legge le dimensioni di un'immagine dalla sola intestazione, senza BitmapFactory e senza decodificare
+ * nulla: JPEG (marker SOF, più l'orientamento EXIF), PNG (IHDR), GIF e WebP (VP8, VP8L e VP8X). Legge
+ * poche centinaia di byte per immagine, saltando i segmenti che non servono, quindi è adatta a misurare
+ * migliaia di file, anche in parallelo con {@link #probeAll(List)}. Le dimensioni sono le stesse di
+ * BitmapLoader.getSize(), cioè senza applicare l'orientamento. Non dipende da Android.
+ *
+ * <pre>
+ * final List&lt;ImageProbe.Info&gt; infos = ImageProbe.probeAll(paths);
+ * for (ImageProbe.Info info : infos) if (info != null) Log.i("GRID", info.getOrientedWidth() + "x" + info.getOrientedHeight());
+ * </pre>
+ */
+@SuppressWarnings({ "unused", "RedundantSuppression" })
+public final class ImageProbe {
+
+	public final static String JPEG = "image/jpeg";
+	public final static String PNG = "image/png";
+	public final static String GIF = "image/gif";
+	public final static String WEBP = "image/webp";
+
+	// Byte letti dall'inizio del segmento EXIF per cercare l'orientamento, che di solito è nei primi cento
+	private final static int EXIF_PEEK = 4 * 1024;
+
+	// Buffer di lettura, piccolo perché si leggono solo le intestazioni
+	private final static int BUFFER_SIZE = 1024;
+
+	// File per ogni task del batch in parallelo
+	private final static int BATCH_THRESHOLD = 16;
+
+	private static ForkJoinPool pool = null;
+
+	private ImageProbe() { }
+
+	/**
+	 * Ritorna le dimensioni (larghezza e altezza) di un'immagine da file, -1 se non è possibile leggerle
+	 */
+	public static int[] getSize(final String path) {
+		final Info info = probe(path);
+		return info != null ? new int[] { info.width, info.height } : new int[] { -1, -1 };
+	}
+
+	/**
+	 * Legge l'intestazione di un'immagine da file
+	 * @return Le informazioni, NULL se il file non si può leggere o il formato non è supportato
+	 */
+	public static Info probe(final String path) {
+		try {
+			final InputStream in = new FileInputStream(path);
+			try {
+				return probe(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException x) {
+			return null;
+		}
+	}
+
+	/**
+	 * Legge l'intestazione di un'immagine da uno stream, che non viene chiuso
+	 * @return Le informazioni, NULL se il formato non è supportato o l'intestazione non è valida
+	 */
+	public static Info probe(final InputStream stream) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+		try {
+			final int b0 = in.readUnsignedByte(), b1 = in.readUnsignedByte();
+			if (b0 == 0xFF && b1 == 0xD8) return probeJPEG(in);
+			if (b0 == 0x89 && b1 == 'P') return probePNG(in);
+			if (b0 == 'G' && b1 == 'I') return probeGIF(in);
+			if (b0 == 'R' && b1 == 'I') return probeWebP(in);
+			return null;
+		} catch (EOFException x) {
+			return null; // Intestazione troncata
+		}
+	}
+
+	/**
+	 * Legge le intestazioni di molti file in parallelo, su un pool fork-join con un thread per core
+	 * @return Le informazioni nello stesso ordine dei path, NULL per quelli che non è possibile leggere
+	 */
+	public static List<Info> probeAll(final List<String> paths) {
+		return probeAll(paths, getPool());
+	}
+
+	/**
+	 * Legge le intestazioni di molti file in parallelo, sul pool fork-join dato
+	 * @return Le informazioni nello stesso ordine dei path, NULL per quelli che non è possibile leggere
+	 */
+	public static List<Info> probeAll(final List<String> paths, final ForkJoinPool pool) {
+		final String[] p = paths.toArray(new String[paths.size()]);
+		final Info[] infos = new Info[p.length];
+		pool.invoke(new Batch(p, infos, 0, p.length));
+		return new ArrayList<>(Arrays.asList(infos));
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+		return pool;
+	}
+
+	/**
+	 * JPEG: segmenti fino al primo SOF, leggendo l'orientamento dal segmento APP1 EXIF se c'è
+	 */
+	private static Info probeJPEG(final DataInputStream in) throws IOException {
+		int orientation = 1;
+		while (true) {
+
+			// Marker, saltando i byte di riempimento
+			int marker = in.readUnsignedByte();
+			if (marker != 0xFF) return null;
+			while (marker == 0xFF) marker = in.readUnsignedByte();
+			if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) continue; // Senza lunghezza
+			if (marker == 0xD9 || marker == 0xDA) return null; // Fine immagine o inizio dati, senza SOF
+			final int length = in.readUnsignedShort() - 2;
+			if (length < 0) return null;
+
+			// SOF0-SOF15, esclusi DHT, JPG e DAC che hanno codici nello stesso intervallo
+			if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+				if (length < 5) return null;
+				in.readUnsignedByte(); // Precisione
+				final int height = in.readUnsignedShort();
+				final int width = in.readUnsignedShort();
+				return new Info(JPEG, width, height, orientation);
+			}
+
+			// APP1 con EXIF, letto solo all'inizio
+			int skip = length;
+			if (marker == 0xE1 && orientation == 1 && length >= 14) {
+				final byte[] exif = new byte[Math.min(length, EXIF_PEEK)];
+				in.readFully(exif);
+				skip -= exif.length;
+				orientation = parseExifOrientation(exif);
+			}
+			skipFully(in, skip);
+
+		}
+	}
+
+	/**
+	 * Ritorna l'orientamento (da 1 a 8) dall'IFD0 di un segmento EXIF, 1 se non c'è
+	 */
+	private static int parseExifOrientation(final byte[] exif) {
+		if (exif[0] != 'E' || exif[1] != 'x' || exif[2] != 'i' || exif[3] != 'f' || exif[4] != 0 || exif[5] != 0) return 1;
+		final int tiff = 6;
+		final boolean little;
+		if (exif[tiff] == 'I' && exif[tiff + 1] == 'I') little = true;
+		else if (exif[tiff] == 'M' && exif[tiff + 1] == 'M') little = false;
+		else return 1;
+		if (readShort(exif, tiff + 2, little) != 0x2A) return 1;
+		final long ifd = readInt(exif, tiff + 4, little) & 0xFFFFFFFFL;
+		if (ifd < 8 || tiff + ifd + 2 > exif.length) return 1;
+		final int entries = readShort(exif, (int)(tiff + ifd), little);
+		for (int i = 0; i < entries; i++) {
+			final int entry = (int)(tiff + ifd + 2 + i * 12);
+			if (entry + 12 > exif.length) return 1;
+			if (readShort(exif, entry, little) != 0x0112) continue;
+			final int orientation = readShort(exif, entry + 8, little); // Tipo SHORT, nei primi due byte del valore
+			return orientation >= 1 && orientation <= 8 ? orientation : 1;
+		}
+		return 1;
+	}
+
+	/**
+	 * PNG: firma e primo chunk, che deve essere IHDR
+	 */
+	private static Info probePNG(final DataInputStream in) throws IOException {
+		final byte[] signature = new byte[6];
+		in.readFully(signature);
+		if (signature[0] != 'N' || signature[1] != 'G' || signature[2] != '\r' || signature[3] != '\n' || signature[4] != 0x1A || signature[5] != '\n') return null;
+		in.readInt(); // Lunghezza del chunk
+		if (in.readInt() != 0x49484452) return null; // "IHDR"
+		final int width = in.readInt(), height = in.readInt();
+		return width > 0 && height > 0 ? new Info(PNG, width, height, 1) : null;
+	}
+
+	/**
+	 * GIF: dimensioni del logical screen, little endian
+	 */
+	private static Info probeGIF(final DataInputStream in) throws IOException {
+		final byte[] version = new byte[4];
+		in.readFully(version);
+		if (version[0] != 'F' || version[1] != '8' || (version[2] != '7' && version[2] != '9') || version[3] != 'a') return null;
+		final int width = readLittleShort(in), height = readLittleShort(in);
+		return new Info(GIF, width, height, 1);
+	}
+
+	/**
+	 * WebP: contenitore RIFF, con il primo chunk VP8 (lossy), VP8L (lossless) o VP8X (esteso)
+	 */
+	private static Info probeWebP(final DataInputStream in) throws IOException {
+		final byte[] header = new byte[14];
+		in.readFully(header); // "FF" + dimensione + "WEBP" + tipo del chunk
+		if (header[0] != 'F' || header[1] != 'F' || header[6] != 'W' || header[7] != 'E' || header[8] != 'B' || header[9] != 'P') return null;
+		if (header[10] != 'V' || header[11] != 'P' || header[12] != '8') return null;
+		final int type = header[13];
+		in.readInt(); // Dimensione del chunk
+		if (type == ' ') {
+			skipFully(in, 3); // Frame tag
+			if (in.readUnsignedByte() != 0x9D || in.readUnsignedByte() != 0x01 || in.readUnsignedByte() != 0x2A) return null;
+			final int width = readLittleShort(in) & 0x3FFF, height = readLittleShort(in) & 0x3FFF;
+			return new Info(WEBP, width, height, 1);
+		}
+		if (type == 'L') {
+			if (in.readUnsignedByte() != 0x2F) return null;
+			final int bits = in.readUnsignedByte() | (in.readUnsignedByte() << 8) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 24);
+			return new Info(WEBP, (bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1, 1);
+		}
+		if (type == 'X') {
+			skipFully(in, 4); // Flag e riservati
+			final int width = readLittleInt24(in) + 1, height = readLittleInt24(in) + 1;
+			return new Info(WEBP, width, height, 1);
+		}
+		return null;
+	}
+
+	private static void skipFully(final DataInputStream in, final int n) throws IOException {
+		if (in.skipBytes(n) < n) throw new EOFException();
+	}
+
+	private static int readLittleShort(final DataInputStream in) throws IOException {
+		return in.readUnsignedByte() | (in.readUnsignedByte() << 8);
+	}
+
+	private static int readLittleInt24(final DataInputStream in) throws IOException {
+		return in.readUnsignedByte() | (in.readUnsignedByte() << 8) | (in.readUnsignedByte() << 16);
+	}
+
+	private static int readShort(final byte[] b, final int offset, final boolean little) {
+		final int b0 = b[offset] & 0xFF, b1 = b[offset + 1] & 0xFF;
+		return little ? b0 | (b1 << 8) : (b0 << 8) | b1;
+	}
+
+	private static int readInt(final byte[] b, final int offset, final boolean little) {
+		final int s0 = readShort(b, offset, little), s1 = readShort(b, offset + 2, little);
+		return little ? s0 | (s1 << 16) : (s0 << 16) | s1;
+	}
+
+	/**
+	 * Task del batch in parallelo: divide i file a metà finché non sono pochi
+	 */
+	private static class Batch extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String[] paths;
+		private final Info[] infos;
+		private final int from, to;
+
+		private Batch(final String[] paths, final Info[] infos, final int from, final int to) {
+			this.paths = paths;
+			this.infos = infos;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override protected void compute() {
+			if (to - from <= BATCH_THRESHOLD) {
+				for (int i = from; i < to; i++) infos[i] = probe(paths[i]);
+				return;
+			}
+			final int middle = (from + to) >>> 1;
+			invokeAll(new Batch(paths, infos, from, middle), new Batch(paths, infos, middle, to));
+		}
+
+	}
+
+	/**
+	 * Informazioni lette dall'intestazione di un'immagine
+	 */
+	public static final class Info {
+
+		private final String mimeType;
+		private final int width;
+		private final int height;
+		private final int orientation;
+
+		private Info(final String mimeType, final int width, final int height, final int orientation) {
+			this.mimeType = mimeType;
+			this.width = width;
+			this.height = height;
+			this.orientation = orientation;
+		}
+
+		/** Ritorna il tipo MIME, una delle costanti JPEG, PNG, GIF e WEBP */
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		/** Ritorna la larghezza, senza applicare l'orientamento, come BitmapLoader.getSize() */
+		public int getWidth() {
+			return width;
+		}
+
+		/** Ritorna l'altezza, senza applicare l'orientamento, come BitmapLoader.getSize() */
+		public int getHeight() {
+			return height;
+		}
+
+		/** Ritorna l'orientamento EXIF, da 1 (normale) a 8, sempre 1 per i formati diversi da JPEG */
+		public int getOrientation() {
+			return orientation;
+		}
+
+		/** Ritorna true se l'orientamento scambia larghezza e altezza (rotazione di 90 o 270 gradi) */
+		public boolean isTransposed() {
+			return orientation >= 5;
+		}
+
+		/** Ritorna la larghezza come verrà visualizzata, applicando l'orientamento */
+		public int getOrientedWidth() {
+			return isTransposed() ? height : width;
+		}
+
+		/** Ritorna l'altezza come verrà visualizzata, applicando l'orientamento */
+		public int getOrientedHeight() {
+			return isTransposed() ? width : height;
+		}
+
+		@Override public String toString() {
+			return String.format(Locale.US, "%s %dx%d, orientation %d", mimeType, width, height, orientation);
+		}
+
+	}
+
+}
@@ -2,30 +2,72 @@ package com.lorenzostanco.utils;
 
 import android.annotation.SuppressLint;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.JsonReader;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
 import java.io.StringReader;
 import java.net.HttpURLConnection;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 
 /**
  * Generic, abstract, web service client.
@@ -49,13 +91,31 @@ public abstract class Request<T> {
 
 	public final static int READ_BUFFER_SIZE = 4 * 1024;
 	public final static int DEFAULT_TIMEOUT = 60000;
+	public final static int PROGRESS_INTERVAL = 100;
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
 	
 	// Connection timeout
 	protected int timeout = DEFAULT_TIMEOUT;
+
+	// Connection opened by subclasses overriding requestInBackground(String), closed when cancelled
+	protected volatile HttpURLConnection connection = null;
+
+	// Overall deadline of each send, from send() to parsed response, 0 for none
+	protected long deadline = 0;
+	
+	// Sends still running, and the raw response of the last completed one
+	private final List<Handle> handles = new CopyOnWriteArrayList<>();
+	private String rawResponse = null;
+
+	// Concurrent mode: send() doesn't cancel the sends still running
+	protected boolean concurrent = false;
 	
-	// Current connection
-	protected HttpURLConnection connection = null;
-	private AsyncTask<Void, Void, Object> asyncTask;
+	// Handler to run listeners on the main thread from background
+	private static Handler mainHandler = null;
+	
+	// Identical GET requests running at the same time share the same call, guarded by itself
+	private final static Map<String, Call> runningCalls = new HashMap<>();
+	protected boolean coalescing = false;
 	
 	// Optional request method and body
 	protected String requestMethod = "GET";
@@ -64,12 +124,32 @@ public abstract class Request<T> {
 	// Optional request headers
 	protected Map<String, String> requestHeaders;
 
-	// Listeners
+	// Dispatcher running the background task, NULL for the default one, and priority in its queue
+	protected RequestDispatcher dispatcher = null;
+	protected RequestDispatcher.Priority priority = RequestDispatcher.Priority.NORMAL;
+
+	// Disk cache for GET responses, NULL for the default one (if any)
+	protected RequestCache cache = null;
+
+	// Compression: negotiate compressed responses, and gzip request bodies at least this long (-1 to never)
+	protected boolean acceptCompressedResponse = true;
+	protected int requestGzipThreshold = -1;
+
+	// Retry policy, NULL for the default one (if any)
+	protected RequestRetryPolicy retryPolicy = null;
+
+	// Rate limiter, NULL for the default one (if any)
+	protected RequestRateLimiter rateLimiter = null;
+
+	// Transfer statistics of the last completed request
+	private TransferStats transferStats = null;
+
+	// Listeners, safe to iterate from any thread while they're added or removed
 	protected List<IEventListener<T>> eventListeners;
 
 	/** Initializes the client */
 	public Request() {
-		this.eventListeners = new ArrayList<>();
+		this.eventListeners = new CopyOnWriteArrayList<>();
 		this.requestHeaders = new HashMap<>();
 	}
 	
@@ -80,6 +160,13 @@ public abstract class Request<T> {
 		return this;
 	}
 
+	/** Removes an event listener
+	 * @return This object, for chaining */
+	public Request<T> removeEventListener(final IEventListener<T> l) {
+		this.eventListeners.remove(l);
+		return this;
+	}
+
 	/** Sets request timeout
 	 * @param timeout Timeout in milliseconds
 	 * @return This object, for chaining */
@@ -88,6 +175,95 @@ public abstract class Request<T> {
 		return this;
 	}
 
+	/** Sets an overall deadline for each send, across queue wait, connection, upload, download and parsing.
+	 * Unlike the timeout, which applies to each single connect or read, it bounds the whole request: when it
+	 * expires the connection is closed, blocking reads are interrupted, and the send fails with a
+	 * "deadline_exceeded" error. Parse steps can read the time left with {@link Call#getTimeLeft()}.
+	 * @param deadline Deadline in milliseconds from send(), 0 for none (default)
+	 * @return This object, for chaining */
+	public Request<T> setDeadline(final long deadline) {
+		this.deadline = Math.max(0, deadline);
+		return this;
+	}
+
+	/** Sets the dispatcher that runs requests in background, NULL to use the default shared one
+	 * @see RequestDispatcher
+	 * @return This object, for chaining */
+	public Request<T> setDispatcher(final RequestDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+		return this;
+	}
+
+	/** Sets the priority of the next sends in the dispatcher queue, default is NORMAL.
+	 * PREFETCH requests may be dropped if too many requests are waiting, failing with a "dropped" error.
+	 * @see RequestDispatcher.Priority
+	 * @return This object, for chaining */
+	public Request<T> setPriority(final RequestDispatcher.Priority priority) {
+		this.priority = priority;
+		return this;
+	}
+
+	/** Sets the disk cache for GET responses, NULL to use the default one (if any).
+	 * To skip the cache for a single request, set a "Cache-Control: no-store" request header.
+	 * @see RequestCache
+	 * @return This object, for chaining */
+	public Request<T> setCache(final RequestCache cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	/** Enables or disables the negotiation of gzip/deflate compressed responses, default is enabled.
+	 * Responses are decompressed while they're read, and only if the server sent them compressed.
+	 * @return This object, for chaining */
+	public Request<T> setAcceptCompressedResponse(final boolean accept) {
+		this.acceptCompressedResponse = accept;
+		return this;
+	}
+
+	/** Sends request bodies gzipped (with a "Content-Encoding: gzip" header) if they're at least the given size,
+	 * default is -1 to never compress them. The server must support it.
+	 * @param minBytes Min body size in bytes to compress it, -1 to disable
+	 * @return This object, for chaining */
+	public Request<T> setRequestGzipThreshold(final int minBytes) {
+		this.requestGzipThreshold = minBytes;
+		return this;
+	}
+
+	/** Sets the retry policy for failed requests, NULL to use the default one (if any)
+	 * @see RequestRetryPolicy
+	 * @return This object, for chaining */
+	public Request<T> setRetryPolicy(final RequestRetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+
+	/** Sets the rate limiter, NULL to use the default one (if any)
+	 * @see RequestRateLimiter
+	 * @return This object, for chaining */
+	public Request<T> setRateLimiter(final RequestRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+		return this;
+	}
+
+	/** Enables or disables coalescing, default is disabled: identical GET requests (same client class, URL,
+	 * headers and options) of clients that enabled it, running at the same time, share a single connection,
+	 * a single parsed response and a single failure, while each client still fires its own events. Shared
+	 * responses should not be modified by listeners.
+	 * @return This object, for chaining */
+	public Request<T> setCoalescing(final boolean coalescing) {
+		this.coalescing = coalescing;
+		return this;
+	}
+
+	/** Enables or disables concurrent mode, default is disabled: every send() cancels the previous one.
+	 * In concurrent mode the client runs many sends at the same time, each one with its own {@link Handle}
+	 * to cancel it, and fires events for each of them. Changing options affects only the next sends.
+	 * @return This object, for chaining */
+	public Request<T> setConcurrent(final boolean concurrent) {
+		this.concurrent = concurrent;
+		return this;
+	}
+
 	/** Sets the request headers
 	 * @return This object, for chaining */
 	public Request<T> setRequestHeaders(final Map<String, String> headers) {
@@ -104,7 +280,8 @@ public abstract class Request<T> {
 		return this;
 	}
 
-	/** Sets the request body from any object, using <code>.toString()</code>)
+	/** Sets the request body from any object, using <code>.toString()</code>, or streamed if it's a
+	 * {@link RequestBody}, a byte array, a File or an InputStream
 	 * @return This object, for chaining */
 	@SuppressWarnings("UnusedReturnValue")
 	public Request<T> setRequestBody(final Object body) {
@@ -135,96 +312,240 @@ public abstract class Request<T> {
 		return this;
 	}
 
-	/** Performs request on URL. Used by other public request() methods */
+	/** Performs request on URL. Used by other public request() methods
+	 * @return The handle of this send, to cancel it or read its raw response */
 	@SuppressLint("StaticFieldLeak") 
-	public void send(final String url) {
+	public Handle send(final String url) {
+		
+		// Cancel any running request, unless in concurrent mode
+		if (!this.concurrent) this.cancel();
 		
-		// Cancel any running request
-		this.cancel();
+		// Join an identical request already running, if any
+		final String key = this.coalescing ? this.getCoalescingKey(url) : null;
+		final Call call;
+		final Handle handle;
+		final boolean joined;
+		synchronized (runningCalls) {
+			final Call running = key != null ? runningCalls.get(key) : null;
+			joined = running != null;
+			call = joined ? running : newCall(url, key, requestHeaders, requestMethod, requestBody);
+			handle = new Handle(this, call);
+			call.subscribers.add(handle);
+			if (!joined && key != null) runningCalls.put(key, call);
+		}
+		this.handles.add(handle);
+		if (joined) handle.armDeadline(this.deadline); // The timer of the call counts from the first send
+		
+		// Before running request, fire onRequest event
+		for (final IEventListener<T> l : eventListeners) l.onRequest(url);
+		if (joined || !handle.isRunning()) return handle;
 		
 		// Run an asynchronous task in background
-		this.asyncTask = new AsyncTask<Void, Void, Object>() {
-			
-			// Before running request, fire onRequest event
-			protected void onPreExecute() {
-				for (final IEventListener<T> l : eventListeners) l.onRequest(url);
-			}
+		call.task = new AsyncTask<Void, Void, Object>() {
 
 			// Background task
 			@Override protected Object doInBackground(final Void... params) {
-				try {
-					final Object response = requestInBackground(url);
-					disconnect();
-					return response;
-				} catch (Exception e) {
-					disconnect();
-					return e; // On errors, result is the exception
-				}
+				return runCall(call);
 			}
 			
-			// After running background task...
+			// After running background task, deliver the result to every client still waiting for it
 			protected void onPostExecute(final Object result) {
 				if (this.isCancelled()) return;
-				
-				// Request is complete, errors or not!
-				for (final IEventListener<T> l : eventListeners) l.onComplete(url);
-				
-				// Exception?
-				if (result instanceof Exception) {
-					final Exception e = (Exception)result;
-					final String errorCode = result instanceof SocketException || result instanceof UnknownHostException || result instanceof SocketTimeoutException ? "connection_error" : "unknown_error";
-					for (final IEventListener<T> l : eventListeners) l.onError(url, errorCode, e.getClass().getSimpleName() + ": " + e.getMessage());
-					
-				} else {
-					postExecute(url, result);
-				}
-				
+				for (final Handle subscriber : call.unsubscribeAll()) subscriber.client.complete(subscriber, result);
 			}
 			
 		};
 		
-		// Go
-		this.asyncTask.execute();
+		// Go, through the dispatcher instead of the serial AsyncTask executor
+		final RequestDispatcher dispatcher = this.dispatcher != null ? this.dispatcher : RequestDispatcher.getDefault();
+		call.task.executeOnExecutor(new Executor() {
+			@Override public void execute(final Runnable task) {
+				call.job = dispatcher.newJob(url, call.priority, task, new Runnable() {
+					@Override public void run() {
+						call.dropped();
+					}
+				});
+				dispatcher.enqueue(call.job); // Kept before, as it may be dropped right away
+			}
+		});
+		call.armDeadline(call.job, new Runnable() {
+			@Override public void run() {
+				call.failQueued(new DeadlineException(call.deadline));
+			}
+		});
+		return handle;
 		
 	}
 
-	/** Returns the raw response as string, or NULL if send() didn't completed successfully */
-	public abstract String getRawResponse();
+	/** Runs a call in background with requestInBackground(), returning its result, or the exception on errors */
+	Object runCall(final Call call) {
+		call.startedAt = System.nanoTime();
+		call.startDeadline();
+		Object result = null;
+		try {
+			result = requestInBackground(call);
+			call.checkDeadline(); // A response parsed too late is late anyway
+			return result;
+		} catch (Exception e) {
+			return result = call.isExpired() ? new DeadlineException(call.deadline) : e; // On errors, result is the exception
+		} finally {
+			call.stopDeadline();
+			if (result instanceof Exception) call.disconnect();
+			else call.connection = null; // Response read and closed: keep the socket alive for the next requests
+			call.unregister();
+			call.report(result instanceof Exception ? (Exception)result : null);
+		}
+	}
 
-	/** Cancel current connection, if any */
-	public void cancel() {
-		if (this.asyncTask != null) this.asyncTask.cancel(true);
-		if (this.isRunning()) {
-			final String url = this.connection.getURL().toString();
-			new Thread(new Runnable() {
-				@Override public void run() {
-					disconnect();
-				}
-			}).start();
-			for (final IEventListener<T> l : this.eventListeners) l.onCancel(url);
+	/** Creates a call with the options of this client, and the given request */
+	Call newCall(final String url, final String key, final Map<String, String> requestHeaders, final String requestMethod, final Object requestBody) {
+		final Call call = new Call(url, key, requestHeaders, requestMethod, requestBody, timeout, getCache(), getRetryPolicy(), acceptCompressedResponse, requestGzipThreshold);
+		call.priority = this.priority;
+		call.rateLimiter = getRateLimiter();
+		call.deadline = this.deadline;
+		return call;
+	}
+
+	/** Fires events for a completed send */
+	private void complete(final Handle handle, final Object result) {
+		if (!this.handles.remove(handle)) return;
+		handle.stopDeadline();
+		final Call call = handle.call;
+		this.rawResponse = handle.rawResponse = result instanceof Exception ? null : call.rawResponse;
+		this.transferStats = call.stats;
+		
+		// Request is complete, errors or not!
+		for (final IEventListener<T> l : eventListeners) l.onComplete(call.url);
+		
+		// Exception?
+		if (result instanceof Exception) {
+			final Exception e = (Exception)result;
+			for (final IEventListener<T> l : eventListeners) l.onError(call.url, errorCodeOf(e), e.getClass().getSimpleName() + ": " + e.getMessage());
+			
+		} else {
+			postExecute(call.url, result);
 		}
+		
+	}
+
+	/** Returns the error code for an exception thrown by requestInBackground() */
+	static String errorCodeOf(final Exception e) {
+		if (e instanceof RequestDispatcher.DroppedException) return "dropped";
+		if (e instanceof DeadlineException) return "deadline_exceeded";
+		if (e instanceof RequestRateLimiter.RateLimitException) return "rate_limited";
+		return e instanceof SocketException || e instanceof UnknownHostException || e instanceof SocketTimeoutException || e instanceof RequestRetryPolicy.CircuitOpenException ? "connection_error" : "unknown_error";
+	}
+
+	/** Returns the key that identifies requests which can share the same call, or NULL if the request can't be shared.
+	 * Besides the request, it includes every option that changes how the call runs: sharing a call means sharing them. */
+	protected String getCoalescingKey(final String url) {
+		if (this.requestBody != null || !this.requestMethod.equalsIgnoreCase("GET")) return null;
+		return this.getClass().getName() + " " + this.requestMethod.toUpperCase() + " " + url + " " + new TreeMap<>(this.requestHeaders)
+			+ " timeout=" + timeout + " deadline=" + deadline + " priority=" + priority + " compressed=" + acceptCompressedResponse
+			+ " dispatcher=" + identityOf(dispatcher) + " cache=" + identityOf(getCache())
+			+ " retry=" + identityOf(getRetryPolicy()) + " limiter=" + identityOf(getRateLimiter());
+	}
+
+	/** Returns an identity of an option object for coalescing keys, "-" if NULL */
+	private static String identityOf(final Object option) {
+		return option != null ? option.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(option)) : "-";
+	}
+
+	/** Returns the raw response as string, or NULL if send() didn't completed successfully.
+	 * In concurrent mode, it's the response of the last completed send: use {@link Handle#getRawResponse()} instead. */
+	public String getRawResponse() {
+		return this.rawResponse;
+	}
+
+	/** Returns bytes sent and received by the last completed request, on the wire and before/after compression, or NULL if none */
+	public TransferStats getTransferStats() {
+		return this.transferStats;
+	}
+
+	/** Cancel current request, if any, or all the running sends in concurrent mode.
+	 * The connection is closed only if no other client is sharing it. */
+	public void cancel() {
+		for (final Handle handle : this.handles) handle.cancel();
+	}
+
+	/** Returns the cache used by this client, its own or the default one, NULL if none */
+	protected RequestCache getCache() {
+		return this.cache != null ? this.cache : RequestCache.getDefault();
+	}
+
+	/** Returns the retry policy used by this client, its own or the default one, NULL if none */
+	protected RequestRetryPolicy getRetryPolicy() {
+		return this.retryPolicy != null ? this.retryPolicy : RequestRetryPolicy.getDefault();
+	}
+
+	/** Returns the rate limiter used by this client, its own or the default one, NULL if none */
+	protected RequestRateLimiter getRateLimiter() {
+		return this.rateLimiter != null ? this.rateLimiter : RequestRateLimiter.getDefault();
 	}
 
 	/** Returns true if client is running a request */
 	public boolean isRunning() {
-		return this.connection != null;
+		return !this.handles.isEmpty();
+	}
+
+	/** Returns the number of sends still running, more than one only in concurrent mode */
+	public int getRunningCount() {
+		return this.handles.size();
+	}
+	
+	/** Makes the HTTP request in a sync-way, storing the connection and the raw response in the call.
+	 * By default it runs requestInBackground(String), for subclasses that only override that one.
+	 * @throws Exception In case of any network error
+	 * @return An object as the result of the HTTP request */
+	protected Object requestInBackground(final Call call) throws Exception {
+		try {
+			return requestInBackground(call.url);
+		} finally {
+			disconnect();
+		}
+	}
+
+	/** Makes the HTTP request in a sync-way. Override it, or requestInBackground(Call) to use the options and the shared
+	 * connection of the call. Subclasses opening their own connection can store it in the connection field, to have it
+	 * closed when cancelled.
+	 * @throws Exception In case of any network error
+	 * @return An object as the result of the HTTP request */
+	protected Object requestInBackground(final String url) throws Exception {
+		throw new UnsupportedOperationException(getClass().getName() + " must override requestInBackground()");
 	}
 
-	/** Closes the connection */
+	/** Closes the connection opened by requestInBackground(String), if any */
 	private void disconnect() {
+		final HttpURLConnection connection = this.connection;
 		if (connection != null) {
 			connection.disconnect();
-			connection = null;
+			this.connection = null;
 		}
 	}
 	
-	/** Makes the HTTP request in a sync-way
-	 * @throws Exception In case of any network error
-	 * @return An object as the result of the HTTP request */
-	protected abstract Object requestInBackground(final String url) throws Exception;
-	
 	/** Consumes the HTTP request in a sync-way, firing onSuccess() or onError() on listeners */
-	protected abstract void postExecute(final String url, Object result);
+	protected void postExecute(final String url, final Object result) {
+		
+		// Is error?
+		final T response;
+		try {
+			response = toResponse(result);
+		} catch (ErrorResponse e) {
+			for (final IEventListener<T> l : eventListeners) l.onError(url, e.getCode(), e.getMessage());
+			return;
+		}
+		
+		// Success!
+		for (final IEventListener<T> l : eventListeners) l.onSuccess(url, response);
+		
+	}
+
+	/** Converts the result of requestInBackground() to the response for onSuccess(), checking errors reported by the response itself
+	 * @throws ErrorResponse If the response reports an error */
+	@SuppressWarnings("unchecked")
+	protected T toResponse(final Object result) throws ErrorResponse {
+		return (T)result;
+	}
 	
 	/** Read an URL to get a String in a sync way.
 	 * This method is not used by class itself, it's intended to be an utility method
@@ -240,216 +561,1209 @@ public abstract class Request<T> {
 	 * @param requestBody The request body, can be NULL
 	 * @param timeout Timeout in milliseconds */
 	public static String requestStringSync(final String url, final Map<String, String> requestHeaders, final String requestMethod, final Object requestBody, final int timeout) throws IOException {
-		final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection(); // Open connection
-		return requestStringSyncFromConnection(connection, requestHeaders, requestMethod, requestBody, timeout);
+		final Call call = newSyncCall(url, requestHeaders, requestMethod, requestBody, timeout);
+		try {
+			final String response = requestString(call);
+			call.report(null);
+			return response;
+		} catch (IOException e) {
+			call.report(e);
+			throw e;
+		}
+	}
+
+	/** Creates a call for sync helpers, with default options */
+	private static Call newSyncCall(final String url, final Map<String, String> requestHeaders, final String requestMethod, final Object requestBody, final int timeout) {
+		final Call call = new Call(url, null, requestHeaders, requestMethod, requestBody, timeout, RequestCache.getDefault(), RequestRetryPolicy.getDefault(), true, -1);
+		call.rateLimiter = RequestRateLimiter.getDefault();
+		return call;
+	}
+
+	/** Performs a call in a sync way, reading the whole response as a String. */
+	protected static String requestString(final Call call) throws IOException {
+		final InputStream in = requestStream(call);
+		return readString(in, call.getCharset(), call.contentLength);
+	}
+
+	/** Performs a call in a sync way, and returns the response stream to be read (and closed) by the caller. The stream is
+	 * already decompressed, and if the call has a cache fresh responses are read from disk without connecting at all.
+	 * Failures up to the response headers are retried according to the call retry policy, if any. */
+	protected static InputStream requestStream(final Call call) throws IOException {
+		final RequestRetryPolicy policy = call.retryPolicy;
+		if (policy == null) return requestStreamOnce(call);
+		final String host = call.getHost();
+		for (int attempt = 1; ; attempt++) {
+			policy.checkCircuit(call, host);
+			try {
+				final InputStream in = requestStreamOnce(call);
+				if (call.connection != null) policy.onSuccess(call, host);
+				return in;
+			} catch (IOException e) {
+				call.disconnect();
+				if (call.isExpired()) throw e; // Closed by the deadline, not the host's fault
+				final long delay = policy.onFailure(call, host, attempt, e);
+				if (delay < 0 || !call.isRequestBodyRepeatable() || delay >= call.getTimeLeft()) throw e;
+				call.retries = attempt;
+				call.notifyRetry(attempt, delay, e);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException x) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Canceled while waiting to retry");
+				}
+			}
+		}
 	}
 
-	/** Read an URL to get a String in a sync way, needs an already opened connection. */
-	private static String requestStringSyncFromConnection(final HttpURLConnection connection, final Map<String, String> requestHeaders, final String requestMethod, final Object requestBody, final int timeout) throws IOException {
+	/** Performs a single attempt of a call, see requestStream() */
+	private static InputStream requestStreamOnce(final Call call) throws IOException {
+		
+		// Look for a cached response
+		final RequestCache cache = call.cache;
+		final boolean cacheable = cache != null && RequestCache.isCacheable(call.requestMethod, call.requestBody, call.requestHeaders);
+		final RequestCache.Entry cached = cacheable ? cache.get(call.url) : null;
+		if (cached != null && cached.isFresh() && !RequestCache.isNoCacheRequest(call.requestHeaders)) try {
+			final InputStream in = call.countResponse(cache.hit(cached), null);
+			call.contentType = cached.contentType;
+			call.contentLength = cached.getLength();
+			call.fromCache = true;
+			call.status = HttpURLConnection.HTTP_OK;
+			call.responseAt = System.nanoTime();
+			return in;
+		} catch (IOException ignored) { } // Entry gone meanwhile, go on with the network
 	
-		// Setup connection
-		connection.setConnectTimeout(timeout);
-		connection.setReadTimeout(timeout);
-		if (requestHeaders != null) for (final String header : requestHeaders.keySet()) {
-			connection.setRequestProperty(header, requestHeaders.get(header));
+		// Wait for the rate limit, if any
+		call.checkDeadline();
+		if (call.rateLimiter != null) call.rateLimiter.acquire(call.url);
+	
+		// Open and setup connection, never waiting past the deadline
+		final HttpURLConnection connection = (HttpURLConnection) new URL(call.url).openConnection();
+		call.connection = connection;
+		connection.setConnectTimeout(call.getTimeout());
+		connection.setReadTimeout(call.getTimeout());
+		for (final String header : call.requestHeaders.keySet()) {
+			connection.setRequestProperty(header, call.requestHeaders.get(header));
+		}
+		
+		// Negotiate compressed responses, unless already done by request headers
+		if (call.acceptCompressedResponse && connection.getRequestProperty("Accept-Encoding") == null) {
+			connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+		}
+		
+		// Conditional request to revalidate a stale cached response
+		if (cached != null) {
+			if (cached.etag != null) connection.setRequestProperty("If-None-Match", cached.etag);
+			if (cached.lastModified != null) connection.setRequestProperty("If-Modified-Since", cached.lastModified);
 		}
 		
 		// Request method
-		connection.setRequestMethod(requestMethod.toUpperCase());
+		connection.setRequestMethod(call.requestMethod.toUpperCase());
 		
-		// Optional request body
-		if (requestBody != null) {
+		// Optional request body: streamed with a known length or chunked, or as string gzipped if large enough
+		final RequestBody streamed = RequestBody.wrap(call.requestBody);
+		byte[] body = null, wire = null;
+		if (streamed != null) {
 			connection.setDoOutput(true);
-			final boolean requestBodyIsJSON = requestBody instanceof JSONObject || requestBody instanceof JSONArray;
-			connection.setRequestProperty("Content-Type", requestBodyIsJSON ? "application/json" : "application/x-www-form-urlencoded");
-			final OutputStreamWriter out = new OutputStreamWriter(connection.getOutputStream());
-			out.write(requestBody.toString());
-			out.flush();
-			out.close();
+			if (connection.getRequestProperty("Content-Type") == null) connection.setRequestProperty("Content-Type", streamed.getContentType());
+			final long length = streamed.getLength();
+			if (length >= 0) connection.setFixedLengthStreamingMode(length);
+			else connection.setChunkedStreamingMode(0);
+		} else if (call.requestBody != null) {
+			connection.setDoOutput(true);
+			final boolean requestBodyIsJSON = call.requestBody instanceof JSONObject || call.requestBody instanceof JSONArray;
+			if (connection.getRequestProperty("Content-Type") == null) connection.setRequestProperty("Content-Type", requestBodyIsJSON ? "application/json" : "application/x-www-form-urlencoded");
+			body = call.requestBody.toString().getBytes("UTF-8");
+			wire = call.requestGzipThreshold >= 0 && body.length >= call.requestGzipThreshold ? gzip(body) : body;
+			if (wire != body) connection.setRequestProperty("Content-Encoding", "gzip");
 		} else {
 			connection.setDoOutput(false);
 		}
 		
+		// Connect now, to measure connection time alone
+		call.connectStartAt = System.nanoTime();
+		connection.connect();
+		call.connectedAt = System.nanoTime();
+		RequestPrewarmer.onConnected(call.getHost(), (call.connectedAt - call.connectStartAt) / 1000000.0);
+		
+		// Send the body
+		if (streamed != null) {
+			final long total = streamed.getLength();
+			final UploadOutputStream out = new UploadOutputStream(connection.getOutputStream(), call, total);
+			call.notifyUploadProgress(0, total, true);
+			try {
+				streamed.writeTo(out);
+				out.flush();
+			} finally {
+				out.close();
+			}
+			call.notifyUploadProgress(out.count, total, true);
+			call.stats.requestBytes = out.count;
+			call.stats.requestBytesOnWire = out.count;
+		} else if (wire != null) {
+			final OutputStream out = connection.getOutputStream();
+			out.write(wire);
+			out.flush();
+			out.close();
+			call.stats.requestBytes = body.length;
+			call.stats.requestBytesOnWire = wire.length;
+		}
+		
 		// Get the response code and throw an IOException with the response message if >= 400
 		final int status = connection.getResponseCode();
-		if (status >= 400) throw new IOException((status + " " + connection.getResponseMessage()).trim());
+		call.responseAt = System.nanoTime();
+		call.status = status;
+		if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+			call.contentType = cached.contentType;
+			call.contentLength = cached.getLength();
+			call.fromCache = true;
+			return call.countResponse(cache.revalidated(cached, connection), null);
+		}
+		if ((status == 429 || status == HttpURLConnection.HTTP_UNAVAILABLE) && call.rateLimiter != null) call.rateLimiter.onRetryAfter(call.getHost(), connection.getHeaderField("Retry-After"));
+		if (status >= 400) throw new StatusException(status, connection.getResponseMessage(), connection.getHeaderFields());
 		
-		// Read input stream
-		final InputStream in = connection.getInputStream();
-		final InputStreamReader inr = new InputStreamReader(in, "UTF-8");
-		@SuppressWarnings("UnusedAssignment") int read = 0;
-		final char[] buffer = new char[READ_BUFFER_SIZE];
-		@SuppressWarnings("StringBufferMayBeStringBuilder") final StringBuffer stringBuffer = new StringBuffer();
-		while ((read = inr.read(buffer)) > 0) stringBuffer.append(buffer, 0, read);
-
-		// On success, result is the response string
-		inr.close();
-		return stringBuffer.toString();
+		// Content type, and length if not compressed, to decode and presize the string
+		call.contentType = connection.getContentType();
+		call.contentLength = connection.getContentEncoding() == null ? contentLengthOf(connection) : -1;
+		
+		// On success, result is the decompressed response stream, saved to cache while it's read
+		final CountingInputStream wireIn = new CountingInputStream(connection.getInputStream());
+		final InputStream in = call.countResponse(decompress(wireIn, connection.getContentEncoding()), wireIn);
+		return cacheable && status == HttpURLConnection.HTTP_OK ? cache.miss(call.url, connection, in) : in;
 
 	}
 
-	/** Listener interface for web service events */
-	public interface IEventListener<T> {
-		
-		/** Before web request is sent */
-		void onRequest(String url);
-		
-		/** When web request is canceled */
-		void onCancel(String url);
-		
-		/** After web request completed, with or without errors */
-		void onComplete(String url);
+	/** Wraps a response stream to decompress it according to its Content-Encoding, if gzip or deflate */
+	private static InputStream decompress(final InputStream in, final String contentEncoding) throws IOException {
+		if (contentEncoding == null) return in;
+		final String encoding = contentEncoding.trim().toLowerCase();
+		if (!encoding.equals("gzip") && !encoding.equals("x-gzip") && !encoding.equals("deflate")) return in;
 		
-		/** After web request completed successfully and the "error" condition is FALSE or not set */
-		void onSuccess(String url, T response);
+		// Peek the first bytes, an empty body can't be decompressed
+		final BufferedInputStream buffered = new BufferedInputStream(in, READ_BUFFER_SIZE);
+		buffered.mark(2);
+		final int b0 = buffered.read(), b1 = buffered.read();
+		buffered.reset();
+		if (b0 < 0) return buffered;
+		if (!encoding.equals("deflate")) return new GZIPInputStream(buffered, READ_BUFFER_SIZE);
 		
-		/** After web request completed with errors, on connection errors or if the "error" condition is set and TRUE */
-		void onError(String url, String code, String message);
+		// Deflate should be zlib-wrapped, but some servers send it raw
+		final boolean zlib = (b0 & 0x0F) == 8 && b1 >= 0 && ((b0 << 8) | b1) % 31 == 0;
+		return new InflaterInputStream(buffered, new Inflater(!zlib), READ_BUFFER_SIZE);
 		
 	}
 
-	/** Simple implementation for a web service events listener, every method do nothing */
-	public static class EventListener<T> implements IEventListener<T> {
-		@Override public void onRequest(final String url) { }
-		@Override public void onCancel(final String url) { }
-		@Override public void onComplete(final String url) { }
-		@Override public void onSuccess(final String url, final T response) { }
-		@Override public void onError(final String url, final String code, final String message) { }
+	/** Compresses a request body */
+	private static byte[] gzip(final byte[] body) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 32);
+		final GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(body);
+		out.close();
+		return bytes.toByteArray();
 	}
 
-	/**
-	 * Concrete implementation for a web service which outputs a JSON object 
-	 * @see Request
-	 */
-	public static class JSON extends Request<JSONObject> {
+	/** Read a whole input stream as a string, then closes it. Uses pooled buffers, so the only allocations are the result and its builder.
+	 * @param sizeHint Expected length of the string, e.g. from Content-Length, or -1 if unknown */
+	static String readString(final InputStream in, final Charset charset, final long sizeHint) throws IOException {
+		final ByteBuffer bytes = RequestBufferPool.obtainBytes();
+		final CharBuffer chars = RequestBufferPool.obtainChars();
+		final CharsetDecoder decoder = RequestBufferPool.decoder(charset);
+		try {
+			final StringBuilder builder = new StringBuilder(sizeHint > 0 && sizeHint < Integer.MAX_VALUE ? (int)sizeHint : READ_BUFFER_SIZE);
+			boolean eof = false;
+			while (!eof) {
+				final int read = in.read(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+				if (read < 0) eof = true; else bytes.position(bytes.position() + read);
+				bytes.flip();
+				CoderResult result;
+				do {
+					result = decoder.decode(bytes, chars, eof);
+					builder.append(chars.array(), chars.arrayOffset(), chars.position());
+					chars.clear();
+				} while (result.isOverflow());
+				bytes.compact();
+			}
+			CoderResult result;
+			do {
+				result = decoder.flush(chars);
+				builder.append(chars.array(), chars.arrayOffset(), chars.position());
+				chars.clear();
+			} while (result.isOverflow());
 
-		private String rawResponse = null;
+			// On success, result is the response string
+			return builder.toString();
 
-		/** Initializes the client */
-		public JSON() {
-			super();
+		} finally {
+			RequestBufferPool.recycle(bytes);
+			RequestBufferPool.recycle(chars);
+			in.close();
 		}
-		
-		@Override protected Object requestInBackground(final String url) throws Exception {
-			
-			// Open connection and get string
-			connection = (HttpURLConnection) new URL(url).openConnection();
-			rawResponse = Request.requestStringSyncFromConnection(connection, requestHeaders, requestMethod, requestBody, timeout);
-			
-			// On success, result is the JSON
-			return new JSONObject(rawResponse);
-			
+	}
+
+	/** Returns the charset of a Content-Type header, UTF-8 if missing or unsupported */
+	private static Charset charsetOf(final String contentType) {
+		if (contentType != null) for (final String parameter : contentType.split(";")) {
+			final String p = parameter.trim();
+			if (p.regionMatches(true, 0, "charset=", 0, 8)) try {
+				return Charset.forName(p.substring(8).replace("\"", "").trim());
+			} catch (Exception ignored) { }
 		}
+		return UTF_8;
+	}
 
-		@Override protected void postExecute(final String url, final Object result) {
-			
-			// Cast JSON response
-			final JSONObject response = (JSONObject)result;
-			
-			// Is error?
-			if (response.optBoolean("error", false)) {
-				for (final IEventListener<JSONObject> l : eventListeners) l.onError(url,
-					response.optString("error_code", "unknown_error"),
-					response.optString("error_message", "(unknown error)")
-				);
-				
-			// Success?
-			} else {
-				for (final IEventListener<JSONObject> l : eventListeners) l.onSuccess(url, response);
-			}
-			
+	/** Returns the Content-Length of a response, -1 if missing or invalid. Unlike getContentLength() it's a long, for bodies
+	 * over 2 GB, and unlike getContentLengthLong() it works before API 24. */
+	static long contentLengthOf(final HttpURLConnection connection) {
+		final String length = connection.getHeaderField("Content-Length");
+		if (length != null) try {
+			return Math.max(-1, Long.parseLong(length.trim()));
+		} catch (NumberFormatException ignored) { }
+		return -1;
+	}
+
+	/** Bytes sent and received by a request, before and after compression */
+	public static class TransferStats {
+
+		private volatile long requestBytes = 0;
+		private volatile long requestBytesOnWire = 0;
+		private CountingInputStream responseIn = null;
+		private CountingInputStream responseWireIn = null;
+
+
+		/** Returns the size of the request body, before compression */
+		public long getRequestBytes() {
+			return requestBytes;
 		}
 
-		@Override public String getRawResponse() {
-			return rawResponse;
+		/** Returns the size of the request body sent on the network, after compression */
+		public long getRequestBytesOnWire() {
+			return requestBytesOnWire;
 		}
-		
-		/** Read an URL to get a JSON object in a sync way.
-		 * This method is not used by class itself, it's intended to be an utility method
-		 * @param requestHeaders The request headers, can be NULL
-		 * @param requestBody The request body, can be NULL */
-		public static JSONObject requestJSONObjectSync(final String url, final Map<String, String> requestHeaders, final String requestMethod, final String requestBody) throws IOException, JSONException {
-			return requestJSONObjectSync(url, requestHeaders, requestMethod, requestBody, DEFAULT_TIMEOUT);
+
+		/** Returns the size of the response body read, after decompression */
+		public long getResponseBytes() {
+			return responseIn != null ? responseIn.count : 0;
 		}
 
-		/** Read an URL to get a JSON object in a sync way.
-		 * This method is not used by class itself, it's intended to be an utility method
-		 * @param requestHeaders The request headers, can be NULL
-		 * @param requestBody The request body, can be NULL
-		 * @param timeout Timeout in milliseconds */
-		public static JSONObject requestJSONObjectSync(final String url, final Map<String, String> requestHeaders, final String requestMethod, final String requestBody, final int timeout) throws IOException, JSONException {
-			return new JSONObject(requestStringSync(url, requestHeaders, requestMethod, requestBody, timeout));
+		/** Returns the size of the response body received from the network, before decompression, 0 if read from cache */
+		public long getResponseBytesOnWire() {
+			return responseWireIn != null ? responseWireIn.count : 0;
 		}
 
-		/** Read an URL to get a JSON array in a sync way.
-		 * This method is not used by class itself, it's intended to be an utility method
-		 * @param requestHeaders The request headers, can be NULL
-		 * @param requestBody The request body, can be NULL */
-		public static JSONArray requestJSONArraySync(final String url, final Map<String, String> requestHeaders, final String requestMethod, final String requestBody) throws IOException, JSONException {
-			return requestJSONArraySync(url, requestHeaders, requestMethod, requestBody, DEFAULT_TIMEOUT);
+		/** Returns the request body compression ratio, e.g. 8 if compressed to 1/8, 1 if not compressed */
+		public double getRequestCompressionRatio() {
+			return requestBytesOnWire > 0 ? (double)requestBytes / requestBytesOnWire : 1;
 		}
 
-		/** Read an URL to get a JSON array in a sync way.
-		 * This method is not used by class itself, it's intended to be an utility method
-		 * @param requestHeaders The request headers, can be NULL
-		 * @param requestBody The request body, can be NULL
-		 * @param timeout Timeout in milliseconds */
-		public static JSONArray requestJSONArraySync(final String url, final Map<String, String> requestHeaders, final String requestMethod, final String requestBody, final int timeout) throws IOException, JSONException {
-			return new JSONArray(requestStringSync(url, requestHeaders, requestMethod, requestBody, timeout));
+		/** Returns the response body compression ratio, e.g. 8 if compressed to 1/8, 1 if not compressed or read from cache */
+		public double getResponseCompressionRatio() {
+			final long wire = getResponseBytesOnWire();
+			return wire > 0 ? (double)getResponseBytes() / wire : 1;
 		}
-		
+
+		@Override public String toString() {
+			return String.format(Locale.US, "sent %d bytes (%d on wire, %.1fx), received %d bytes (%d on wire, %.1fx)",
+				getRequestBytes(), getRequestBytesOnWire(), getRequestCompressionRatio(),
+				getResponseBytes(), getResponseBytesOnWire(), getResponseCompressionRatio());
+		}
+
 	}
-	
 
-	/**
-	 * Concrete implementation for a web service which outputs a XML document
-	 * @see Request
-	 */
-	public static class XML extends Request<Document> {
+	/** An input stream that counts bytes read through it */
+	private static class CountingInputStream extends FilterInputStream {
 
-		private String rawResponse = null;
+		private volatile long count = 0;
+		private volatile long endedAt = 0;
 
-		/** Initializes the client */
-		public XML() {
-			super();
+		private CountingInputStream(final InputStream in) {
+			super(in);
 		}
-		
-		@Override protected Object requestInBackground(final String url) throws Exception {
-			
-			// Open connection and get string
-			connection = (HttpURLConnection) new URL(url).openConnection();
-			rawResponse = Request.requestStringSyncFromConnection(connection, requestHeaders, requestMethod, requestBody, timeout);
-			
-			// On success, result is the XML document
-			final StringReader responseReader = new StringReader(rawResponse);
-			final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(responseReader));
-			responseReader.close();
-			return document;
-			
+
+		@Override public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0) count++; else ended();
+			return b;
 		}
 
-		@Override protected void postExecute(final String url, final Object result) {
-			
-			// Cast JSON response
-			final Document response = (Document)result;
-			
-			// Is error?
-			final Element responseElement = response.getDocumentElement();
-			if (responseElement.hasAttribute("error") && responseElement.getAttribute("error").equals("1")) {
-				for (final IEventListener<Document> l : eventListeners) l.onError(url,
-					responseElement.hasAttribute("error_code") ? responseElement.getAttribute("error_code") : "unknown_error",
-					responseElement.hasAttribute("error_message") ? responseElement.getAttribute("error_message") : "(unknown error)"
-				);
-				
-			// Success?
-			} else {
-				for (final IEventListener<Document> l : eventListeners) l.onSuccess(url, response);
+		@Override public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+			final int read = super.read(buffer, offset, length);
+			if (read > 0) count += read; else if (read < 0) ended();
+			return read;
+		}
+
+		@Override public void close() throws IOException {
+			ended();
+			super.close();
+		}
+
+		/** Records when the stream was read up to the end, or closed, whatever comes first */
+		private void ended() {
+			if (endedAt == 0) endedAt = System.nanoTime();
+		}
+
+		@Override public long skip(final long n) throws IOException {
+			final long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		@Override public boolean markSupported() {
+			return false;
+		}
+
+	}
+
+	/** A single HTTP request running in background, shared by all the clients coalesced on it */
+	protected static class Call {
+
+		/** Requested URL */
+		public final String url;
+
+		// Request, as it was configured when sent
+		private final Map<String, String> requestHeaders;
+		private final String requestMethod;
+		private final Object requestBody;
+		private final int timeout;
+		private final RequestCache cache;
+		private final RequestRetryPolicy retryPolicy;
+		private final boolean acceptCompressedResponse;
+		private final int requestGzipThreshold;
+
+		/** Bytes sent and received */
+		protected final TransferStats stats = new TransferStats();
+
+		/** Number of retries done so far */
+		protected volatile int retries = 0;
+
+		/** Response status code, -1 if no response yet */
+		protected volatile int status = -1;
+
+		/** Response Content-Type header, and length of the decoded body, -1 if unknown */
+		protected volatile String contentType = null;
+		protected volatile long contentLength = -1;
+
+		// Metrics: timings from System.nanoTime(), 0 if not reached yet
+		private final long sentAt = System.nanoTime();
+		private volatile long startedAt = 0;
+		private volatile long connectStartAt = 0;
+		private volatile long connectedAt = 0;
+		private volatile long responseAt = 0;
+		private volatile boolean fromCache = false;
+
+		// Last progress notification times
+		private long lastProgressAt = 0;
+		private long lastUploadProgressAt = 0;
+
+		/** Current connection, set by requestStream() */
+		protected volatile HttpURLConnection connection = null;
+
+		/** Raw response as string, set by requestInBackground() if available */
+		protected volatile String rawResponse = null;
+
+		// Coalescing key, clients waiting for the result and the background task, guarded by runningCalls
+		private final String key;
+		private final List<Handle> subscribers = new ArrayList<>(1);
+		private AsyncTask<Void, Void, Object> task;
+
+		// Rate limiter, NULL if none
+		private volatile RequestRateLimiter rateLimiter = null;
+
+		// Priority, and the dispatcher job while it waits
+		private volatile RequestDispatcher.Priority priority = RequestDispatcher.Priority.NORMAL;
+		private volatile RequestDispatcher.Job job = null;
+
+		// Overall deadline in milliseconds (0 if none), whether it expired, and its timer, the thread it interrupts and whether the call ran, guarded by the call
+		private volatile long deadline = 0;
+		private volatile boolean expired = false;
+		private ScheduledFuture<?> deadlineTask = null;
+		private Thread worker = null;
+		private boolean finished = false;
+
+		private Call(final String url, final String key, final Map<String, String> requestHeaders, final String requestMethod, final Object requestBody, final int timeout, final RequestCache cache, final RequestRetryPolicy retryPolicy, final boolean acceptCompressedResponse, final int requestGzipThreshold) {
+			this.url = url;
+			this.key = key;
+			this.requestHeaders = new HashMap<>();
+			if (requestHeaders != null) this.requestHeaders.putAll(requestHeaders);
+			this.requestMethod = requestMethod;
+			this.requestBody = requestBody;
+			this.timeout = timeout;
+			this.cache = cache;
+			this.retryPolicy = retryPolicy;
+			this.acceptCompressedResponse = acceptCompressedResponse;
+			this.requestGzipThreshold = requestGzipThreshold;
+		}
+
+		/** Counts bytes of a response stream, and optionally of the underlying network stream */
+		private InputStream countResponse(final InputStream in, final CountingInputStream wireIn) {
+			stats.responseWireIn = wireIn;
+			stats.responseIn = new CountingInputStream(in);
+			return stats.responseIn;
+		}
+
+		/** Reports metrics of this call, if enabled. Must be called after parsing.
+		 * @param error The exception that made the call fail, or NULL */
+		void report(final Exception error) {
+			if (!RequestMetrics.isEnabled()) return;
+			final long now = System.nanoTime();
+			if (startedAt == 0) startedAt = sentAt; // Sync calls don't wait in queue
+			final CountingInputStream responseIn = stats.responseIn;
+			final long bodyEndAt = responseIn != null ? responseIn.endedAt : 0;
+			String endpoint;
+			try {
+				final URL u = new URL(url);
+				endpoint = requestMethod.toUpperCase(Locale.US) + " " + u.getHost().toLowerCase(Locale.US) + u.getPath();
+			} catch (Exception x) {
+				endpoint = requestMethod.toUpperCase(Locale.US) + " " + url;
+			}
+			RequestMetrics.report(new RequestMetrics.Sample(url, requestMethod.toUpperCase(Locale.US), getHost(), endpoint, status, fromCache, retries,
+				error != null ? error.getClass().getSimpleName() : null,
+				millis(sentAt, startedAt), millis(connectStartAt, connectedAt), millis(connectedAt, responseAt),
+				millis(responseAt, bodyEndAt), millis(bodyEndAt, now), millis(sentAt, now),
+				stats.getResponseBytes(), stats.getResponseBytesOnWire()));
+		}
+
+		/** Returns milliseconds between two nanoTime() timestamps, -1 if any is missing */
+		private static double millis(final long from, final long to) {
+			return from != 0 && to != 0 && to >= from ? (to - from) / 1000000.0 : -1;
+		}
+
+		/** Returns the response charset, from Content-Type, UTF-8 if not set */
+		public Charset getCharset() {
+			return charsetOf(contentType);
+		}
+
+		/** Returns the request method */
+		public String getRequestMethod() {
+			return requestMethod;
+		}
+
+		/** Returns the milliseconds left before the deadline, 0 if expired, Long.MAX_VALUE if there's no deadline.
+		 * Long parse steps can use it to give up, or to do less work. */
+		public long getTimeLeft() {
+			if (deadline <= 0) return Long.MAX_VALUE;
+			if (expired) return 0;
+			return Math.max(0, deadline - (System.nanoTime() - sentAt) / 1000000L);
+		}
+
+		/** Throws a DeadlineException if the deadline expired. Long parse steps can call it now and then. */
+		public void checkDeadline() throws DeadlineException {
+			if (isExpired()) throw new DeadlineException(deadline);
+		}
+
+		/** Returns true if the deadline expired */
+		boolean isExpired() {
+			return expired || getTimeLeft() <= 0;
+		}
+
+		/** Returns the connect and read timeout, shortened to the time left before the deadline */
+		private int getTimeout() {
+			final long left = getTimeLeft();
+			if (left == Long.MAX_VALUE || (timeout > 0 && timeout <= left)) return timeout;
+			return (int)Math.max(1, Math.min(left, Integer.MAX_VALUE));
+		}
+
+		/** Starts the deadline timer, if any, as soon as the call is queued: the time spent waiting for a dispatcher thread counts.
+		 * If the deadline expires while the job is still queued, the job is removed and onExpiredInQueue runs instead.
+		 * @param job The dispatcher job of the call, NULL if not known
+		 * @param onExpiredInQueue Fails the call for its clients, NULL if not needed */
+		void armDeadline(final RequestDispatcher.Job job, final Runnable onExpiredInQueue) {
+			if (job != null) this.job = job;
+			if (deadline <= 0) return;
+			synchronized (this) {
+				if (finished || deadlineTask != null) return;
+				deadlineTask = RequestScheduler.schedule(new Runnable() {
+					@Override public void run() {
+						expire(onExpiredInQueue);
+					}
+				}, getTimeLeft());
+			}
+		}
+
+		/** Lets the deadline timer interrupt the calling thread, which is going to run the call */
+		private void startDeadline() {
+			if (deadline <= 0) return;
+			armDeadline(null, null); // Not queued through send(), e.g. run by a batch without a deadline
+			synchronized (this) {
+				worker = Thread.currentThread();
+			}
+		}
+
+		/** Stops the deadline timer, clearing the interrupt it may have left on the calling thread */
+		private void stopDeadline() {
+			if (deadline <= 0) return;
+			synchronized (this) {
+				finished = true;
+				if (deadlineTask != null) deadlineTask.cancel(false);
+				deadlineTask = null;
+				worker = null;
+			}
+			if (expired) Thread.interrupted();
+		}
+
+		/** On the scheduler thread: removes the job if still queued, else interrupts waits and closes the connection, so
+		 * blocking reads fail at once */
+		private void expire(final Runnable onExpiredInQueue) {
+			synchronized (this) {
+				if (finished) return;
+				expired = true;
+				if (worker != null) worker.interrupt();
+			}
+			final RequestDispatcher.Job job = this.job;
+			if (job != null && onExpiredInQueue != null && job.getDispatcher().remove(job)) {
+				onExpiredInQueue.run(); // Never going to run
+				return;
+			}
+			if (connection != null) RequestScheduler.execute(new Runnable() {
+				@Override public void run() {
+					disconnect(); // Off the timer thread, it may block
+				}
+			});
+		}
+
+		/** Returns the host name of the URL, lower case, or an empty string if malformed */
+		public String getHost() {
+			try {
+				return new URL(url).getHost().toLowerCase(Locale.US);
+			} catch (Exception x) {
+				return "";
+			}
+		}
+
+		/** Notifies retry listeners of the clients waiting for this call, on the main thread */
+		void notifyRetry(final int attempt, final long delay, final Exception e) {
+			final String reason = e.getClass().getSimpleName() + ": " + e.getMessage();
+			for (final IRetryListener l : getRetryListeners()) postToMainThread(new Runnable() {
+				@Override public void run() {
+					l.onRetry(url, attempt, delay, reason);
+				}
+			});
+		}
+
+		/** Notifies retry listeners of the clients waiting for this call, on the main thread */
+		void notifyCircuitStateChange(final String host, final RequestRetryPolicy.CircuitState state) {
+			for (final IRetryListener l : getRetryListeners()) postToMainThread(new Runnable() {
+				@Override public void run() {
+					l.onCircuitStateChange(host, state);
+				}
+			});
+		}
+
+		/** Notifies progress listeners of the clients waiting for this call, on the main thread, at most every PROGRESS_INTERVAL ms unless forced */
+		void notifyProgress(final long bytes, final long total, final boolean force) {
+			final long now = System.currentTimeMillis();
+			if (!force && now - lastProgressAt < PROGRESS_INTERVAL) return;
+			lastProgressAt = now;
+			final List<IProgressListener> listeners = new ArrayList<>();
+			synchronized (runningCalls) {
+				for (final Handle subscriber : subscribers) for (final IEventListener<?> l : subscriber.client.eventListeners) {
+					if (l instanceof IProgressListener && !listeners.contains(l)) listeners.add((IProgressListener)l);
+				}
+			}
+			for (final IProgressListener l : listeners) postToMainThread(new Runnable() {
+				@Override public void run() {
+					l.onProgress(url, bytes, total);
+				}
+			});
+		}
+
+		/** Notifies upload progress listeners of the clients waiting for this call, on the main thread, at most every PROGRESS_INTERVAL ms unless forced */
+		void notifyUploadProgress(final long bytes, final long total, final boolean force) {
+			final long now = System.currentTimeMillis();
+			if (!force && now - lastUploadProgressAt < PROGRESS_INTERVAL) return;
+			lastUploadProgressAt = now;
+			final List<IUploadProgressListener> listeners = new ArrayList<>();
+			synchronized (runningCalls) {
+				for (final Handle subscriber : subscribers) for (final IEventListener<?> l : subscriber.client.eventListeners) {
+					if (l instanceof IUploadProgressListener && !listeners.contains(l)) listeners.add((IUploadProgressListener)l);
+				}
+			}
+			for (final IUploadProgressListener l : listeners) postToMainThread(new Runnable() {
+				@Override public void run() {
+					l.onUploadProgress(url, bytes, total);
+				}
+			});
+		}
+
+		/** Changes the priority, moving the call in the dispatcher queue if still waiting */
+		void setPriority(final RequestDispatcher.Priority priority) {
+			this.priority = priority;
+			final RequestDispatcher.Job job = this.job;
+			if (job != null) job.getDispatcher().reprioritize(job, priority);
+		}
+
+		/** Fails the call for every client waiting for it, after the dispatcher dropped it */
+		private void dropped() {
+			failQueued(new RequestDispatcher.DroppedException());
+		}
+
+		/** Fails the call for every client waiting for it, while it was still queued */
+		private void failQueued(final Exception e) {
+			synchronized (this) {
+				finished = true; // Never going to run, nor expire
+				if (deadlineTask != null) deadlineTask.cancel(false);
+				deadlineTask = null;
+			}
+			unregister();
+			postToMainThread(new Runnable() {
+				@Override public void run() {
+					if (task != null) task.cancel(false);
+					for (final Handle subscriber : unsubscribeAll()) subscriber.client.complete(subscriber, e);
+				}
+			});
+		}
+
+		/** Returns true if the background task of this call has been cancelled */
+		boolean isCancelled() {
+			final AsyncTask<Void, Void, Object> task = this.task;
+			return task != null && task.isCancelled();
+		}
+
+		/** Returns true if the request body can be sent again to retry, false for one-shot streams */
+		boolean isRequestBodyRepeatable() {
+			final RequestBody body = RequestBody.wrap(requestBody);
+			return body == null || body.isRepeatable();
+		}
+
+		/** Returns listeners implementing IRetryListener of all the clients waiting for this call */
+		private List<IRetryListener> getRetryListeners() {
+			final List<IRetryListener> listeners = new ArrayList<>();
+			synchronized (runningCalls) {
+				for (final Handle subscriber : subscribers) for (final IEventListener<?> l : subscriber.client.eventListeners) {
+					if (l instanceof IRetryListener && !listeners.contains(l)) listeners.add((IRetryListener)l);
+				}
+			}
+			return listeners;
+		}
+
+		/** Removes a send, and aborts the call if it was the last one */
+		private void unsubscribe(final Handle subscriber) {
+			synchronized (runningCalls) {
+				subscribers.remove(subscriber);
+				if (!subscribers.isEmpty()) return;
+				unregister();
+			}
+			if (task != null) task.cancel(true);
+			final RequestDispatcher.Job job = this.job;
+			if (job != null) job.getDispatcher().remove(job); // Free its place in the queue, if still waiting
+			if (connection != null) RequestScheduler.execute(new Runnable() {
+				@Override public void run() {
+					disconnect();
+				}
+			});
+		}
+
+		/** Removes all the sends, returning them */
+		private List<Handle> unsubscribeAll() {
+			synchronized (runningCalls) {
+				final List<Handle> all = new ArrayList<>(subscribers);
+				subscribers.clear();
+				return all;
+			}
+		}
+
+		/** Prevents other clients from joining this call */
+		private void unregister() {
+			if (key != null) synchronized (runningCalls) {
+				if (runningCalls.get(key) == this) runningCalls.remove(key);
+			}
+		}
+
+		/** Closes the connection */
+		void disconnect() {
+			final HttpURLConnection connection = this.connection;
+			if (connection != null) {
+				connection.disconnect();
+				this.connection = null;
+			}
+		}
+
+	}
+
+	/** An error reported by the response itself, like <code>"error": true</code> in JSON, with its error code */
+	public static class ErrorResponse extends Exception {
+
+		private final String code;
+
+		public ErrorResponse(final String code, final String message) {
+			super(message);
+			this.code = code;
+		}
+
+		public String getCode() {
+			return code;
+		}
+
+	}
+
+	/** Thrown when a request runs past its deadline */
+	public static class DeadlineException extends InterruptedIOException {
+
+		public DeadlineException(final long deadline) {
+			super("Deadline of " + deadline + " ms exceeded");
+		}
+
+	}
+
+	/** A single send of a client, returned by send(): can be cancelled on its own, and keeps its own raw response */
+	public static final class Handle {
+
+		private final Request<?> client;
+		private final Call call;
+		private volatile String rawResponse = null;
+
+		// Own deadline timer of a send that joined a running call, whose timer started with the first send
+		private volatile ScheduledFuture<?> deadlineTask = null;
+
+		private Handle(final Request<?> client, final Call call) {
+			this.client = client;
+			this.call = call;
+		}
+
+		/** Returns the URL of this send */
+		public String getUrl() {
+			return call.url;
+		}
+
+		/** Returns true until this send completes or is cancelled */
+		public boolean isRunning() {
+			return client.handles.contains(this);
+		}
+
+		/** Returns the raw response as string, or NULL if not completed successfully (or not kept, e.g. in streaming modes) */
+		public String getRawResponse() {
+			return rawResponse;
+		}
+
+		/** Changes the priority of this send, and of the sends sharing its call, if still waiting in the dispatcher queue */
+		public void setPriority(final RequestDispatcher.Priority priority) {
+			call.setPriority(priority);
+		}
+
+		/** Returns bytes sent and received by this send so far */
+		public TransferStats getTransferStats() {
+			return call.stats;
+		}
+
+		/** Cancels this send, if still running, firing onCancel. The connection is closed only if no other send is sharing it. */
+		public void cancel() {
+			if (!client.handles.remove(this)) return;
+			stopDeadline();
+			call.unsubscribe(this);
+			if (client.connection != null && !client.isRunning()) RequestScheduler.execute(new Runnable() {
+				@Override public void run() {
+					client.disconnect();
+				}
+			});
+			for (final IEventListener<?> l : client.eventListeners) l.onCancel(call.url);
+		}
+
+		/** Starts the deadline of this send alone, if any: when it expires, this send leaves the call and fails */
+		private void armDeadline(final long deadline) {
+			if (deadline <= 0) return;
+			deadlineTask = RequestScheduler.schedule(new Runnable() {
+				@Override public void run() {
+					postToMainThread(new Runnable() {
+						@Override public void run() {
+							if (!isRunning()) return;
+							call.unsubscribe(Handle.this);
+							client.complete(Handle.this, new DeadlineException(deadline));
+						}
+					});
+				}
+			}, deadline);
+		}
+
+		private void stopDeadline() {
+			final ScheduledFuture<?> task = deadlineTask;
+			deadlineTask = null;
+			if (task != null) task.cancel(false);
+		}
+
+	}
+
+	/** An output stream that counts bytes written through it, notifying upload progress */
+	private static class UploadOutputStream extends FilterOutputStream {
+
+		private final Call call;
+		private final long total;
+		private long count = 0;
+
+		private UploadOutputStream(final OutputStream out, final Call call, final long total) {
+			super(out);
+			this.call = call;
+			this.total = total;
+		}
+
+		@Override public void write(final int b) throws IOException {
+			out.write(b);
+			count++;
+			call.notifyUploadProgress(count, total, false);
+		}
+
+		@Override public void write(final byte[] b, final int off, final int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+			call.notifyUploadProgress(count, total, false);
+		}
+
+	}
+
+	/** A reader that copies everything it reads into a StringBuilder */
+	private static class TeeReader extends FilterReader {
+
+		private final StringBuilder copy;
+
+		private TeeReader(final Reader in, final StringBuilder copy) {
+			super(in);
+			this.copy = copy;
+		}
+
+		@Override public int read() throws IOException {
+			final int c = super.read();
+			if (c >= 0) copy.append((char)c);
+			return c;
+		}
+
+		@Override public int read(final char[] buffer, final int offset, final int length) throws IOException {
+			final int read = super.read(buffer, offset, length);
+			if (read > 0) copy.append(buffer, offset, read);
+			return read;
+		}
+
+	}
+
+	/** Thrown when the response status code is 400 or more, with the same message as a plain IOException had before */
+	public static class StatusException extends IOException {
+
+		private final int status;
+		private final Map<String, List<String>> headers;
+
+		StatusException(final int status, final String message, final Map<String, List<String>> headers) {
+			super((status + " " + (message != null ? message : "")).trim());
+			this.status = status;
+			this.headers = headers;
+		}
+
+		/** Returns the response status code */
+		public int getStatus() {
+			return status;
+		}
+
+		/** Returns a response header, or NULL */
+		public String getHeader(final String name) {
+			if (headers != null) for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+				if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) return header.getValue().get(0);
+			}
+			return null;
+		}
+
+	}
+
+	/** Runs a task on the main thread */
+	static void postToMainThread(final Runnable task) {
+		postToMainThread(task, 0);
+	}
+
+	/** Runs a task on the main thread after a delay in milliseconds */
+	static void postToMainThread(final Runnable task, final long delay) {
+		getMainHandler().postDelayed(task, delay);
+	}
+
+	/** Removes a task posted to the main thread, if it didn't run yet */
+	static void removeFromMainThread(final Runnable task) {
+		getMainHandler().removeCallbacks(task);
+	}
+
+	private static synchronized Handler getMainHandler() {
+		if (mainHandler == null) mainHandler = new Handler(Looper.getMainLooper());
+		return mainHandler;
+	}
+
+	/** Optional listener interface for retries, event listeners can also implement this to be notified */
+	public interface IRetryListener {
+
+		/** Before waiting to retry a failed request
+		 * @param attempt The number of the attempt that failed, starting from 1
+		 * @param delay Milliseconds before the next attempt */
+		void onRetry(String url, int attempt, long delay, String reason);
+
+		/** When the circuit breaker of a host changes state */
+		void onCircuitStateChange(String host, RequestRetryPolicy.CircuitState state);
+
+	}
+
+	/** Optional listener interface for transfer progress, event listeners can also implement this to be notified */
+	public interface IProgressListener {
+
+		/** While transferring data, at most every PROGRESS_INTERVAL milliseconds
+		 * @param bytes Bytes transferred so far
+		 * @param total Total bytes to transfer, -1 if unknown */
+		void onProgress(String url, long bytes, long total);
+
+	}
+
+	/** Listener interface for records of streaming web services, called on the main thread */
+	public interface IRecordListener<R> {
+
+		/** When a record of the stream is received */
+		void onRecord(String url, R record);
+
+	}
+
+	/** Optional listener interface for upload progress of streamed request bodies, event listeners can also implement this to be notified */
+	public interface IUploadProgressListener {
+
+		/** While sending the request body, at most every PROGRESS_INTERVAL milliseconds
+		 * @param bytes Bytes sent so far
+		 * @param total Total bytes to send, -1 if unknown (chunked) */
+		void onUploadProgress(String url, long bytes, long total);
+
+	}
+
+	/** Listener interface for web service events */
+	public interface IEventListener<T> {
+		
+		/** Before web request is sent */
+		void onRequest(String url);
+		
+		/** When web request is canceled */
+		void onCancel(String url);
+		
+		/** After web request completed, with or without errors */
+		void onComplete(String url);
+		
+		/** After web request completed successfully and the "error" condition is FALSE or not set */
+		void onSuccess(String url, T response);
+		
+		/** After web request completed with errors, on connection errors or if the "error" condition is set and TRUE */
+		void onError(String url, String code, String message);
+		
+	}
+
+	/** Simple implementation for a web service events listener, every method do nothing */
+	public static class EventListener<T> implements IEventListener<T>, IRetryListener, IProgressListener, IUploadProgressListener {
+		@Override public void onRequest(final String url) { }
+		@Override public void onCancel(final String url) { }
+		@Override public void onComplete(final String url) { }
+		@Override public void onSuccess(final String url, final T response) { }
+		@Override public void onError(final String url, final String code, final String message) { }
+		@Override public void onRetry(final String url, final int attempt, final long delay, final String reason) { }
+		@Override public void onCircuitStateChange(final String host, final RequestRetryPolicy.CircuitState state) { }
+		@Override public void onProgress(final String url, final long bytes, final long total) { }
+		@Override public void onUploadProgress(final String url, final long bytes, final long total) { }
+	}
+
+	/**
+	 * Concrete implementation for a web service which outputs a JSON object 
+	 * @see Request
+	 */
+	public static class JSON extends Request<JSONObject> {
+
+		// Streaming mode options
+		private boolean streaming = false;
+		private boolean keepRawResponse = false;
+
+		/** Initializes the client */
+		public JSON() {
+			super();
+		}
+
+		/** Enables or disables streaming mode, where the JSON is decoded straight from the
+		 * connection stream without buffering the whole response as a String first.
+		 * In streaming mode getRawResponse() returns NULL, unless setKeepRawResponse(true) is called.
+		 * @return This object, for chaining */
+		public JSON setStreaming(final boolean streaming) {
+			this.streaming = streaming;
+			return this;
+		}
+
+		/** In streaming mode, also keeps a copy of the response text for getRawResponse()
+		 * @return This object, for chaining */
+		public JSON setKeepRawResponse(final boolean keepRawResponse) {
+			this.keepRawResponse = keepRawResponse;
+			return this;
+		}
+
+		@Override protected String getCoalescingKey(final String url) {
+			final String key = super.getCoalescingKey(url);
+			return key != null && streaming ? key + (keepRawResponse ? " streaming raw" : " streaming") : key;
+		}
+		
+		@Override protected Object requestInBackground(final Call call) throws Exception {
+			
+			// Get string, on success result is the JSON
+			if (!streaming) {
+				call.rawResponse = Request.requestString(call);
+				call.checkDeadline();
+				return new JSONObject(call.rawResponse);
+			}
+			
+			// Streaming mode, decode while reading, copying the text only if asked to
+			final InputStream in = Request.requestStream(call);
+			final StringBuilder raw = keepRawResponse ? new StringBuilder() : null;
+			final Reader inr = new InputStreamReader(in, call.getCharset());
+			final JsonReader reader = new JsonReader(raw != null ? new TeeReader(inr, raw) : inr);
+			try {
+				reader.setLenient(true);
+				final JSONObject response = readJSONObject(reader);
+				if (raw != null) call.rawResponse = raw.toString();
+				return response;
+			} finally {
+				reader.close();
+			}
+			
+		}
+
+		@Override protected JSONObject toResponse(final Object result) throws ErrorResponse {
+			
+			// Cast JSON response
+			final JSONObject response = (JSONObject)result;
+			
+			// Is error?
+			if (response.optBoolean("error", false)) throw new ErrorResponse(
+				response.optString("error_code", "unknown_error"),
+				response.optString("error_message", "(unknown error)")
+			);
+			return response;
+			
+		}
+
+		/** Read an URL to get a JSON object in a sync way.
+		 * This method is not used by class itself, it's intended to be an utility method
+		 * @param requestHeaders The request headers, can be NULL
+		 * @param requestBody The request body, can be NULL */
+		public static JSONObject requestJSONObjectSync(final String url, final Map<String, String> requestHeaders, final String requestMethod, final String requestBody) throws IOException, JSONException {
+			return requestJSONObjectSync(url, requestHeaders, requestMethod, requestBody, DEFAULT_TIMEOUT);
+		}
+
+		/** Read an URL to get a JSON object in a sync way.
+		 * This method is not used by class itself, it's intended to be an utility method
+		 * @param requestHeaders The request headers, can be NULL
+		 * @param requestBody The request body, can be NULL
+		 * @param timeout Timeout in milliseconds */
+		public static JSONObject requestJSONObjectSync(final String url, final Map<String, String> requestHeaders, final String requestMethod, final String requestBody, final int timeout) throws IOException, JSONException {
+			final Call call = newSyncCall(url, requestHeaders, requestMethod, requestBody, timeout);
+			try {
+				final JSONObject response = new JSONObject(requestString(call));
+				call.report(null);
+				return response;
+			} catch (Exception e) {
+				call.report(e);
+				throw e;
+			}
+		}
+
+		/** Read an URL to get a JSON array in a sync way.
+		 * This method is not used by class itself, it's intended to be an utility method
+		 * @param requestHeaders The request headers, can be NULL
+		 * @param requestBody The request body, can be NULL */
+		public static JSONArray requestJSONArraySync(final String url, final Map<String, String> requestHeaders, final String requestMethod, final String requestBody) throws IOException, JSONException {
+			return requestJSONArraySync(url, requestHeaders, requestMethod, requestBody, DEFAULT_TIMEOUT);
+		}
+
+		/** Read an URL to get a JSON array in a sync way.
+		 * This method is not used by class itself, it's intended to be an utility method
+		 * @param requestHeaders The request headers, can be NULL
+		 * @param requestBody The request body, can be NULL
+		 * @param timeout Timeout in milliseconds */
+		public static JSONArray requestJSONArraySync(final String url, final Map<String, String> requestHeaders, final String requestMethod, final String requestBody, final int timeout) throws IOException, JSONException {
+			final Call call = newSyncCall(url, requestHeaders, requestMethod, requestBody, timeout);
+			try {
+				final JSONArray response = new JSONArray(requestString(call));
+				call.report(null);
+				return response;
+			} catch (Exception e) {
+				call.report(e);
+				throw e;
+			}
+		}
+
+		/** Reads a JSON object from a streaming reader, building the same tree that <code>new JSONObject(String)</code> would */
+		public static JSONObject readJSONObject(final JsonReader reader) throws IOException, JSONException {
+			final JSONObject object = new JSONObject();
+			reader.beginObject();
+			while (reader.hasNext()) object.put(reader.nextName(), readJSONValue(reader));
+			reader.endObject();
+			return object;
+		}
+
+		/** Reads a JSON array from a streaming reader, building the same tree that <code>new JSONArray(String)</code> would */
+		public static JSONArray readJSONArray(final JsonReader reader) throws IOException, JSONException {
+			final JSONArray array = new JSONArray();
+			reader.beginArray();
+			while (reader.hasNext()) array.put(readJSONValue(reader));
+			reader.endArray();
+			return array;
+		}
+
+		/** Reads any JSON value from a streaming reader */
+		private static Object readJSONValue(final JsonReader reader) throws IOException, JSONException {
+			switch (reader.peek()) {
+				case BEGIN_OBJECT: return readJSONObject(reader);
+				case BEGIN_ARRAY: return readJSONArray(reader);
+				case BOOLEAN: return reader.nextBoolean();
+				case NUMBER: return parseNumber(reader.nextString());
+				case NULL: reader.nextNull(); return JSONObject.NULL;
+				default: return reader.nextString();
+			}
+		}
+
+		/** Converts a number literal to Integer, Long or Double, like JSONTokener does */
+		private static Object parseNumber(final String literal) {
+			if (literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0) {
+				try {
+					final long l = Long.parseLong(literal);
+					if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) return (int)l;
+					return l;
+				} catch (NumberFormatException ignored) { }
+			}
+			try {
+				return Double.valueOf(literal);
+			} catch (NumberFormatException x) {
+				return literal;
 			}
+		}
+		
+	}
+	
+
+	/**
+	 * Concrete implementation for a web service which outputs a XML document
+	 * @see Request
+	 */
+	public static class XML extends Request<Document> {
+
+		/** Initializes the client */
+		public XML() {
+			super();
+		}
+		
+		@Override protected Object requestInBackground(final Call call) throws Exception {
+			
+			// Open connection and get string
+			call.rawResponse = Request.requestString(call);
+			call.checkDeadline();
+			
+			// On success, result is the XML document
+			final StringReader responseReader = new StringReader(call.rawResponse);
+			final Document document = getDocumentBuilder().parse(new InputSource(responseReader));
+			responseReader.close();
+			return document;
 			
 		}
 
-		@Override public String getRawResponse() {
-			return rawResponse;
+		@Override protected Document toResponse(final Object result) throws ErrorResponse {
+			
+			// Cast XML response
+			final Document response = (Document)result;
+			
+			// Is error?
+			final Element responseElement = response.getDocumentElement();
+			if (responseElement.hasAttribute("error") && responseElement.getAttribute("error").equals("1")) throw new ErrorResponse(
+				responseElement.hasAttribute("error_code") ? responseElement.getAttribute("error_code") : "unknown_error",
+				responseElement.hasAttribute("error_message") ? responseElement.getAttribute("error_message") : "(unknown error)"
+			);
+			return response;
+			
 		}
 
 		/** Read an URL to get a XML document in a sync way.
@@ -466,13 +1780,182 @@ public abstract class Request<T> {
 		 * @param requestBody The request body, can be NULL
 		 * @param timeout Timeout in milliseconds */
 		public static Document requestXMLDocumentSync(final String url, final Map<String, String> requestHeaders, final String requestMethod, final String requestBody, final int timeout) throws Exception {
-			final String response = requestStringSync(url, requestHeaders, requestMethod, requestBody, timeout);
-			final StringReader responseReader = new StringReader(response);
-			final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(responseReader));
-			responseReader.close();
-			return document;
+			final Call call = newSyncCall(url, requestHeaders, requestMethod, requestBody, timeout);
+			try {
+				final StringReader responseReader = new StringReader(requestString(call));
+				final Document document = getDocumentBuilder().parse(new InputSource(responseReader));
+				responseReader.close();
+				call.report(null);
+				return document;
+			} catch (Exception e) {
+				call.report(e);
+				throw e;
+			}
+		}
+
+		/** Returns a document builder for the current thread, creating factory and builder only once per thread */
+		static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+			DocumentBuilder builder = documentBuilders.get();
+			if (builder == null) {
+				builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+				documentBuilders.set(builder);
+			} else {
+				builder.reset();
+			}
+			return builder;
+		}
+
+		// Document builders, not thread-safe, so one per thread
+		private final static ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<>();
+
+	}
+
+	/**
+	 * Concrete implementation for a web service which outputs a XML document, parsed with SAX straight from
+	 * the connection stream, without buffering the response nor building a DOM. The caller-supplied handler
+	 * receives elements while they arrive, and it's passed to onSuccess() at the end. Like {@link Request.XML},
+	 * the "error" attribute of the root element is checked to fire onError() instead.
+	 * 
+	 * <pre>
+	 * ws = new Request.SAX&lt;&gt;(new MyItemsHandler());
+	 * ws.addEventListener(new Request.EventListener&lt;MyItemsHandler&gt;() {
+	 * 	public void onSuccess(String url, MyItemsHandler handler) { 
+	 * 		Log.i("WS", "Received: " + handler.getItems().size() + " items");
+	 * 	}
+	 * });
+	 * </pre>
+	 * @see Request
+	 */
+	public static class SAX<H extends DefaultHandler> extends Request<H> {
+
+		private final H handler;
+
+		/** Initializes the client
+		 * @param handler The handler receiving SAX events, reused by every send() */
+		public SAX(final H handler) {
+			super();
+			this.handler = handler;
+		}
+
+		public H getHandler() {
+			return handler;
+		}
+
+		/** Streaming responses are different for each handler, don't share them */
+		@Override protected String getCoalescingKey(final String url) {
+			return null;
+		}
+
+		@Override protected Object requestInBackground(final Call call) throws Exception {
+			final InputStream in = Request.requestStream(call);
+			try {
+				return parse(in, handler);
+			} finally {
+				in.close();
+			}
+		}
+
+		@SuppressWarnings("unchecked") @Override protected H toResponse(final Object result) throws ErrorResponse {
+			final RootCheckingHandler response = (RootCheckingHandler)result;
+			
+			// Is error?
+			if (response.error) throw new ErrorResponse(
+				response.errorCode != null ? response.errorCode : "unknown_error",
+				response.errorMessage != null ? response.errorMessage : "(unknown error)"
+			);
+			return (H)response.handler;
+			
+		}
+
+		/** Read an URL and parses the XML response with a SAX handler in a sync way.
+		 * This method is not used by class itself, it's intended to be an utility method
+		 * @param requestHeaders The request headers, can be NULL
+		 * @param requestBody The request body, can be NULL
+		 * @param timeout Timeout in milliseconds
+		 * @throws IOException If the root element has the "error" attribute set, with its error message */
+		public static void requestSAXSync(final String url, final Map<String, String> requestHeaders, final String requestMethod, final String requestBody, final int timeout, final DefaultHandler handler) throws Exception {
+			final Call call = newSyncCall(url, requestHeaders, requestMethod, requestBody, timeout);
+			try {
+				final InputStream in = requestStream(call);
+				try {
+					final RootCheckingHandler response = parse(in, handler);
+					if (response.error) throw new IOException(response.errorMessage != null ? response.errorMessage : "(unknown error)");
+				} finally {
+					in.close();
+				}
+				call.report(null);
+			} catch (Exception e) {
+				call.report(e);
+				throw e;
+			}
+		}
+
+		/** Parses a stream with a SAX handler, checking error attributes of the root element */
+		private static RootCheckingHandler parse(final InputStream in, final DefaultHandler handler) throws Exception {
+			final RootCheckingHandler checkingHandler = new RootCheckingHandler(handler);
+			getSAXParser().parse(new InputSource(in), checkingHandler);
+			return checkingHandler;
+		}
+
+		/** Returns a namespace-aware SAX parser for the current thread, creating factory and parser only once per thread */
+		static SAXParser getSAXParser() throws ParserConfigurationException, SAXException {
+			SAXParser parser = saxParsers.get();
+			if (parser == null) {
+				final SAXParserFactory factory = SAXParserFactory.newInstance();
+				factory.setNamespaceAware(true);
+				parser = factory.newSAXParser();
+				saxParsers.set(parser);
+			} else {
+				parser.reset();
+			}
+			return parser;
+		}
+
+		// SAX parsers, not thread-safe, so one per thread
+		private final static ThreadLocal<SAXParser> saxParsers = new ThreadLocal<>();
+
+	}
+
+	/** A SAX handler that forwards everything to another one, reading the error attributes of the root element on the way */
+	private static class RootCheckingHandler extends DefaultHandler {
+
+		private final DefaultHandler handler;
+		private boolean root = true;
+		private boolean error = false;
+		private String errorCode = null;
+		private String errorMessage = null;
+
+		private RootCheckingHandler(final DefaultHandler handler) {
+			this.handler = handler;
+		}
+
+		@Override public void startElement(final String uri, final String localName, final String qName, final Attributes attributes) throws SAXException {
+			if (root) {
+				root = false;
+				error = "1".equals(attributes.getValue("error"));
+				errorCode = attributes.getValue("error_code");
+				errorMessage = attributes.getValue("error_message");
+			}
+			handler.startElement(uri, localName, qName, attributes);
 		}
 
+		@Override public void endElement(final String uri, final String localName, final String qName) throws SAXException { handler.endElement(uri, localName, qName); }
+		@Override public void characters(final char[] ch, final int start, final int length) throws SAXException { handler.characters(ch, start, length); }
+		@Override public void ignorableWhitespace(final char[] ch, final int start, final int length) throws SAXException { handler.ignorableWhitespace(ch, start, length); }
+		@Override public void startDocument() throws SAXException { handler.startDocument(); }
+		@Override public void endDocument() throws SAXException { handler.endDocument(); }
+		@Override public void startPrefixMapping(final String prefix, final String uri) throws SAXException { handler.startPrefixMapping(prefix, uri); }
+		@Override public void endPrefixMapping(final String prefix) throws SAXException { handler.endPrefixMapping(prefix); }
+		@Override public void processingInstruction(final String target, final String data) throws SAXException { handler.processingInstruction(target, data); }
+		@Override public void skippedEntity(final String name) throws SAXException { handler.skippedEntity(name); }
+		@Override public void setDocumentLocator(final Locator locator) { handler.setDocumentLocator(locator); }
+		@Override public void notationDecl(final String name, final String publicId, final String systemId) throws SAXException { handler.notationDecl(name, publicId, systemId); }
+		@Override public void unparsedEntityDecl(final String name, final String publicId, final String systemId, final String notationName) throws SAXException { handler.unparsedEntityDecl(name, publicId, systemId, notationName); }
+		@Override public InputSource resolveEntity(final String publicId, final String systemId) throws IOException, SAXException { return handler.resolveEntity(publicId, systemId); }
+		@Override public void warning(final SAXParseException e) throws SAXException { handler.warning(e); }
+		@Override public void error(final SAXParseException e) throws SAXException { handler.error(e); }
+		@Override public void fatalError(final SAXParseException e) throws SAXException { handler.fatalError(e); }
+
 	}
 	
 	/**
@@ -481,33 +1964,462 @@ public abstract class Request<T> {
 	 */
 	public static class PlainText extends Request<String> {
 
-		private String rawResponse = null;
-
 		/** Initializes the client */
 		public PlainText() {
 			super();
 		}
 
-		@Override protected Object requestInBackground(final String url) throws Exception {
+		@Override protected Object requestInBackground(final Call call) throws Exception {
 
 			// Open connection and get string
-			connection = (HttpURLConnection) new URL(url).openConnection();
-			rawResponse = Request.requestStringSyncFromConnection(connection, requestHeaders, requestMethod, requestBody, timeout);
+			call.rawResponse = Request.requestString(call);
 
 			// On success, result is the response as String
-			return rawResponse;
+			return call.rawResponse;
+
+		}
+
+	}
+	
+	/**
+	 * Base implementation for web services which stream a sequence of records, parsed while they arrive
+	 * and passed one by one to listeners implementing {@link IRecordListener}, on the main thread.
+	 * Records wait for the main thread in a bounded buffer: when it's full, reading stops until the
+	 * listeners catch up (backpressure), so memory stays bounded however long the stream is.
+	 * onSuccess() receives the number of records when the stream ends, cancel() stops it mid-way.
+	 * Streams are never cached nor shared.
+	 * @see Request
+	 */
+	public static abstract class Streaming<R> extends Request<Integer> {
+
+		public final static int DEFAULT_MAX_BUFFERED_RECORDS = 64;
+		public final static int DEFAULT_MAX_RECORD_LENGTH = 1024 * 1024;
+
+		// Record listeners, and limits
+		protected final List<IRecordListener<R>> recordListeners = new CopyOnWriteArrayList<>();
+		private int maxBufferedRecords = DEFAULT_MAX_BUFFERED_RECORDS;
+		private int maxRecordLength = DEFAULT_MAX_RECORD_LENGTH;
+
+		/** Adds a record listener
+		 * @return This object, for chaining */
+		public Streaming<R> addRecordListener(final IRecordListener<R> l) {
+			this.recordListeners.add(l);
+			return this;
+		}
 
+		/** Removes a record listener
+		 * @return This object, for chaining */
+		public Streaming<R> removeRecordListener(final IRecordListener<R> l) {
+			this.recordListeners.remove(l);
+			return this;
 		}
 
+		/** Sets the max number of records waiting for the main thread, default is DEFAULT_MAX_BUFFERED_RECORDS
+		 * @return This object, for chaining */
+		public Streaming<R> setMaxBufferedRecords(final int maxBufferedRecords) {
+			if (maxBufferedRecords < 1) throw new IllegalArgumentException("Max buffered records must be at least 1");
+			this.maxBufferedRecords = maxBufferedRecords;
+			return this;
+		}
+
+		/** Sets the max length of a line, in chars: the stream fails if longer. Default is DEFAULT_MAX_RECORD_LENGTH.
+		 * @return This object, for chaining */
+		public Streaming<R> setMaxRecordLength(final int maxRecordLength) {
+			this.maxRecordLength = maxRecordLength;
+			return this;
+		}
+
+		@Override protected RequestCache getCache() {
+			return null;
+		}
+
+		@Override protected String getCoalescingKey(final String url) {
+			return null;
+		}
+
+		@Override protected Object requestInBackground(final Call call) throws Exception {
+			final RecordDelivery<R> delivery = new RecordDelivery<>(this, call, maxBufferedRecords);
+			final InputStream in = Request.requestStream(call);
+			final LineReader lines = new LineReader(new InputStreamReader(in, call.getCharset()), maxRecordLength);
+			try {
+				R record;
+				while ((record = nextRecord(lines)) != null) {
+					call.checkDeadline();
+					delivery.put(record);
+				}
+			} finally {
+				lines.close();
+			}
+			return delivery;
+		}
+
+		/** Reads the next record from the stream, NULL at the end of it */
+		protected abstract R nextRecord(final LineReader lines) throws Exception;
+
 		@Override protected void postExecute(final String url, final Object result) {
+			((RecordDelivery<?>)result).drain(); // Records still buffered come first
+			super.postExecute(url, result);
+		}
+
+		@Override protected Integer toResponse(final Object result) {
+			return ((RecordDelivery<?>)result).count;
+		}
 
-			// Always success if here, there's nothing to check in the plain text response
-			for (final IEventListener<String> l : eventListeners) l.onSuccess(url, (String)result);
+	}
+
+	/** Hands records from the background thread to the main thread through a bounded buffer */
+	private static class RecordDelivery<R> {
+
+		private final Streaming<R> client;
+		private final Call call;
+		private final ArrayBlockingQueue<R> buffer;
+		private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+		private int count = 0;
+
+		private final Runnable drainTask = new Runnable() {
+			@Override public void run() {
+				drain();
+			}
+		};
 
+		private RecordDelivery(final Streaming<R> client, final Call call, final int capacity) {
+			this.client = client;
+			this.call = call;
+			this.buffer = new ArrayBlockingQueue<>(capacity);
 		}
 
-		@Override public String getRawResponse() {
-			return rawResponse;
+		/** Adds a record, waiting while the buffer is full */
+		private void put(final R record) throws InterruptedIOException {
+			try {
+				buffer.put(record);
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Canceled while waiting for record listeners");
+			}
+			count++;
+			if (drainScheduled.compareAndSet(false, true)) postToMainThread(drainTask);
+		}
+
+		/** Passes buffered records to listeners, on the main thread, unless the call was cancelled */
+		private void drain() {
+			drainScheduled.set(false);
+			R record;
+			while ((record = buffer.poll()) != null) {
+				if (call.isCancelled()) {
+					buffer.clear();
+					return;
+				}
+				for (final IRecordListener<R> l : client.recordListeners) l.onRecord(call.url, record);
+			}
+		}
+
+	}
+
+	/** Reads lines ended by LF, CR or CRLF, failing if longer than a limit */
+	protected static class LineReader {
+
+		private final Reader in;
+		private final int maxLength;
+		private final StringBuilder line = new StringBuilder();
+		private final char[] buffer = new char[READ_BUFFER_SIZE];
+		private int position = 0;
+		private int limit = 0;
+		private boolean skipLF = false;
+
+		LineReader(final Reader in, final int maxLength) {
+			this.in = in;
+			this.maxLength = maxLength;
+		}
+
+		/** Returns the next line without terminator, NULL at the end of the stream */
+		public String readLine() throws IOException {
+			line.setLength(0);
+			while (true) {
+				if (position >= limit) {
+					limit = in.read(buffer, 0, buffer.length);
+					position = 0;
+					if (limit <= 0) {
+						limit = 0;
+						return line.length() > 0 ? line.toString() : null;
+					}
+				}
+				final char c = buffer[position++];
+				if (skipLF) {
+					skipLF = false;
+					if (c == '\n') continue;
+				}
+				if (c == '\n' || c == '\r') {
+					skipLF = c == '\r';
+					return line.toString();
+				}
+				if (line.length() >= maxLength) throw new IOException("Record longer than " + maxLength + " chars");
+				line.append(c);
+			}
+		}
+
+		private void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Concrete implementation for a web service which streams newline-delimited JSON (NDJSON, JSON Lines):
+	 * each non-empty line is a JSON object, passed to record listeners while the stream arrives.
+	 * <pre>
+	 * ws = new Request.NDJSON();
+	 * ws.addRecordListener(new Request.IRecordListener&lt;JSONObject&gt;() {
+	 * 	public void onRecord(String url, JSONObject record) { adapter.add(record); }
+	 * });
+	 * </pre>
+	 * @see Streaming
+	 */
+	public static class NDJSON extends Streaming<JSONObject> {
+
+		/** Initializes the client */
+		public NDJSON() {
+			super();
+			this.requestHeaders.put("Accept", "application/x-ndjson");
+		}
+
+		@Override protected JSONObject nextRecord(final LineReader lines) throws IOException, JSONException {
+			String line;
+			while ((line = lines.readLine()) != null) {
+				if (!line.trim().isEmpty()) return new JSONObject(line);
+			}
+			return null;
+		}
+
+	}
+
+	/**
+	 * Concrete implementation for a web service which streams Server-Sent Events (text/event-stream):
+	 * each event is passed to record listeners while the stream arrives. Comments are ignored, and the
+	 * last event ID is kept to resume the stream with a "Last-Event-ID" header at the next send().
+	 * @see Streaming
+	 */
+	public static class SSE extends Streaming<SSE.Event> {
+
+		private volatile String lastEventId = null;
+		private volatile long reconnectionTime = -1;
+
+		/** Initializes the client */
+		public SSE() {
+			super();
+			this.requestHeaders.put("Accept", "text/event-stream");
+			this.requestHeaders.put("Cache-Control", "no-cache");
+		}
+
+		/** Returns the ID of the last event received, or set by the server, NULL if none */
+		public String getLastEventId() {
+			return lastEventId;
+		}
+
+		/** Returns the reconnection time sent by the server with the "retry" field, in milliseconds, -1 if none */
+		public long getReconnectionTime() {
+			return reconnectionTime;
+		}
+
+		@Override public Handle send(final String url) {
+			if (lastEventId != null) this.requestHeaders.put("Last-Event-ID", lastEventId);
+			else this.requestHeaders.remove("Last-Event-ID");
+			return super.send(url);
+		}
+
+		@Override protected Event nextRecord(final LineReader lines) throws IOException {
+			String event = null;
+			StringBuilder data = null;
+			String line;
+			while ((line = lines.readLine()) != null) {
+
+				// Empty line dispatches the event, if there's data
+				if (line.isEmpty()) {
+					if (data != null) return new Event(lastEventId, event != null ? event : "message", data.toString());
+					event = null;
+					continue;
+				}
+
+				// Field and value, comments start with a colon
+				final int colon = line.indexOf(':');
+				if (colon == 0) continue;
+				final String field = colon > 0 ? line.substring(0, colon) : line;
+				String value = colon > 0 ? line.substring(colon + 1) : "";
+				if (value.startsWith(" ")) value = value.substring(1);
+				switch (field) {
+					case "event": event = value; break;
+					case "data": if (data == null) data = new StringBuilder(value); else data.append('\n').append(value); break;
+					case "id": if (value.indexOf('\0') < 0) lastEventId = value; break;
+					case "retry": try { reconnectionTime = Long.parseLong(value); } catch (NumberFormatException ignored) { } break;
+					default: break;
+				}
+
+			}
+			return null; // An incomplete event at the end is discarded
+		}
+
+		/** A server-sent event */
+		public static final class Event {
+
+			/** Last event ID when the event was received, NULL if none */
+			public final String id;
+
+			/** Event type, "message" if not set */
+			public final String event;
+
+			public final String data;
+
+			private Event(final String id, final String event, final String data) {
+				this.id = id;
+				this.event = event;
+				this.data = data;
+			}
+
+			@Override public String toString() {
+				return event + (id != null ? " #" + id : "") + ": " + data;
+			}
+
+		}
+
+	}
+	
+	/**
+	 * Concrete implementation that downloads the response straight into a file, in constant memory,
+	 * notifying progress to listeners implementing {@link IProgressListener}. Data is written to a
+	 * ".part" file next to the destination, renamed when complete: an interrupted download resumes
+	 * from there at the next send() with an HTTP Range request, if the server supports it.
+	 * @see Request
+	 */
+	public static class Download extends Request<File> {
+
+		private File destination;
+		private boolean resume = true;
+
+		/** Initializes the client
+		 * @param destination File to save the response to, replaced when the download completes */
+		public Download(final File destination) {
+			super();
+			this.destination = destination;
+		}
+
+		/** Sets the file to save the response to, from the next send()
+		 * @return This object, for chaining */
+		public Download setDestination(final File destination) {
+			this.destination = destination;
+			return this;
+		}
+
+		/** Enables or disables resuming interrupted downloads, default is enabled
+		 * @return This object, for chaining */
+		public Download setResume(final boolean resume) {
+			this.resume = resume;
+			return this;
+		}
+
+		/** Downloads are never cached nor shared */
+		@Override protected RequestCache getCache() {
+			return null;
+		}
+
+		@Override protected String getCoalescingKey(final String url) {
+			return null;
+		}
+
+		@Override protected Object requestInBackground(final Call call) throws Exception {
+			final File destination = this.destination;
+			final File part = new File(destination.getPath() + ".part");
+			final File partValidator = new File(destination.getPath() + ".part.etag");
+
+			// Resume from a partial file if there's a validator to check it's still the same resource
+			long offset = resume && part.isFile() ? part.length() : 0;
+			final String validator = offset > 0 ? readValidator(partValidator) : null;
+			if (validator != null) {
+				call.requestHeaders.put("Range", "bytes=" + offset + "-");
+				call.requestHeaders.put("If-Range", validator);
+			} else {
+				offset = 0;
+			}
+			call.requestHeaders.put("Accept-Encoding", "identity"); // Ranges are about bytes on the wire
+
+			// Send request, a 416 means the part is already complete
+			InputStream in;
+			try {
+				in = Request.requestStream(call);
+			} catch (StatusException x) {
+				if (x.getStatus() != 416 || offset == 0 || !("bytes */" + offset).equals(x.getHeader("Content-Range"))) throw x;
+				in = null;
+			}
+
+			// Start over if the server sent the whole resource
+			final HttpURLConnection connection = call.connection;
+			if (in != null && offset > 0) {
+				final String contentRange = connection.getHeaderField("Content-Range");
+				if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) offset = 0;
+				else if (contentRange == null || !contentRange.startsWith("bytes " + offset + "-")) throw new IOException("Unexpected Content-Range: " + contentRange);
+			}
+			if (in != null && offset == 0) writeValidator(partValidator, connection);
+
+			// Write to file, straight from bytes to file channel
+			if (in != null) {
+				final long length = contentLengthOf(connection);
+				final long total = length >= 0 ? offset + length : -1;
+				final ReadableByteChannel source = Channels.newChannel(in);
+				final RandomAccessFile file = new RandomAccessFile(part, "rw");
+				final ByteBuffer buffer = RequestBufferPool.obtainDirectBytes();
+				try {
+					final FileChannel channel = file.getChannel();
+					channel.truncate(offset);
+					channel.position(offset);
+					long bytes = offset;
+					call.notifyProgress(bytes, total, true);
+					while (source.read(buffer) >= 0) {
+						buffer.flip();
+						while (buffer.hasRemaining()) bytes += channel.write(buffer);
+						buffer.clear();
+						call.notifyProgress(bytes, total, false);
+					}
+					call.notifyProgress(bytes, total, true);
+				} finally {
+					RequestBufferPool.recycle(buffer);
+					file.close();
+					source.close();
+				}
+			}
+
+			// Complete, replace destination
+			if (destination.exists() && !destination.delete()) throw new IOException("Cannot replace " + destination);
+			if (!part.renameTo(destination)) throw new IOException("Cannot rename " + part);
+			//noinspection ResultOfMethodCallIgnored
+			partValidator.delete();
+			return destination;
+
+		}
+
+		/** Reads the ETag or Last-Modified saved for a partial download, NULL if none */
+		private static String readValidator(final File file) {
+			if (!file.isFile()) return null;
+			try {
+				final String validator = readString(new FileInputStream(file), UTF_8, file.length()).trim();
+				return validator.isEmpty() ? null : validator;
+			} catch (IOException x) {
+				return null;
+			}
+		}
+
+		/** Saves the ETag or Last-Modified of a new download, to resume it safely */
+		private static void writeValidator(final File file, final HttpURLConnection connection) throws IOException {
+			final String etag = connection.getHeaderField("ETag");
+			final String validator = etag != null && !etag.startsWith("W/") ? etag : connection.getHeaderField("Last-Modified");
+			if (validator == null) {
+				//noinspection ResultOfMethodCallIgnored
+				file.delete();
+				return;
+			}
+			final OutputStream out = new FileOutputStream(file);
+			try {
+				out.write(validator.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
 		}
 
 	}
@@ -0,0 +1,394 @@
+package com.lorenzostanco.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Sends many requests at once with bounded parallelism, using a configured {@link Request} as template
+ * (class, headers, method, timeout, cache, retry policy, dispatcher and priority). Listeners receive every item as
+ * soon as it completes, and all the items together at the end, each with its response or its error
+ * code, with the same semantics of the template listeners (e.g. <code>"error": true</code> in JSON).
+ * Items run straight on the dispatcher, without an AsyncTask each. Must be used from the main thread.
+ *
+ * <pre>
+ * batch = new RequestBatch&lt;&gt;(new Request.JSON()).setMaxParallel(6).setDeadline(10000);
+ * for (String url : urls) batch.add(url);
+ * batch.addEventListener(new RequestBatch.EventListener&lt;JSONObject&gt;() {
+ * 	public void onComplete(List&lt;RequestBatch.Item&lt;JSONObject&gt;&gt; items) { ... }
+ * });
+ * batch.send();
+ * </pre>
+ */
+@SuppressWarnings({ "unused", "Convert2Lambda", "Anonymous2MethodRef", "RedundantSuppression" })
+public class RequestBatch<T> {
+
+	public final static int DEFAULT_MAX_PARALLEL = 6;
+
+	/** Error code of items not completed before the deadline */
+	public final static String ERROR_DEADLINE = "deadline_exceeded";
+
+	/** Error code of items cancelled because another one failed, in fail-fast mode */
+	public final static String ERROR_CANCELLED = "cancelled";
+
+	private final Request<T> template;
+	private final List<Item<T>> items = new ArrayList<>();
+	private final List<IBatchListener<T>> eventListeners = new CopyOnWriteArrayList<>();
+
+	// Options
+	private int maxParallel = DEFAULT_MAX_PARALLEL;
+	private long deadline = 0;
+	private boolean failFast = false;
+
+	// Current send, on the main thread only: results of previous sends are ignored
+	private int generation = 0;
+	private boolean running = false;
+	private int next = 0;
+	private int pending = 0;
+	private Runnable deadlineTask = null;
+
+	/** Initializes the batch
+	 * @param template The request whose options and listeners' semantics are used for every item.
+	 * It's not sent, and its own listeners are not notified. */
+	public RequestBatch(final Request<T> template) {
+		this.template = template;
+	}
+
+	/** Adds a GET item, or with the template method and body
+	 * @return This object, for chaining */
+	public RequestBatch<T> add(final String url) {
+		return add(url, null, null, null);
+	}
+
+	/** Adds an item with its own request method, body and headers
+	 * @param requestMethod NULL to use the template one
+	 * @param requestBody NULL to use the template one
+	 * @param requestHeaders Added to the template ones, can be NULL
+	 * @return This object, for chaining */
+	public RequestBatch<T> add(final String url, final String requestMethod, final Object requestBody, final Map<String, String> requestHeaders) {
+		if (running) throw new IllegalStateException("Batch already running");
+		items.add(new Item<T>(items.size(), url, requestMethod, requestBody, requestHeaders));
+		return this;
+	}
+
+	/** Removes all the items
+	 * @return This object, for chaining */
+	public RequestBatch<T> clear() {
+		if (running) throw new IllegalStateException("Batch already running");
+		items.clear();
+		return this;
+	}
+
+	/** Sets the max number of items running at the same time, default is DEFAULT_MAX_PARALLEL.
+	 * The dispatcher limits still apply.
+	 * @return This object, for chaining */
+	public RequestBatch<T> setMaxParallel(final int maxParallel) {
+		if (maxParallel < 1) throw new IllegalArgumentException("Max parallel must be at least 1");
+		this.maxParallel = maxParallel;
+		return this;
+	}
+
+	/** Sets a deadline for the whole batch: items not completed in time are cancelled, with ERROR_DEADLINE
+	 * @param deadline Milliseconds from send(), 0 for no deadline
+	 * @return This object, for chaining */
+	public RequestBatch<T> setDeadline(final long deadline) {
+		this.deadline = Math.max(0, deadline);
+		return this;
+	}
+
+	/** Enables or disables fail-fast mode, default is disabled: at the first item error the other items
+	 * are cancelled, with ERROR_CANCELLED, and the batch completes
+	 * @return This object, for chaining */
+	public RequestBatch<T> setFailFast(final boolean failFast) {
+		this.failFast = failFast;
+		return this;
+	}
+
+	/** Adds an event listener
+	 * @return This object, for chaining */
+	public RequestBatch<T> addEventListener(final IBatchListener<T> l) {
+		this.eventListeners.add(l);
+		return this;
+	}
+
+	/** Removes an event listener
+	 * @return This object, for chaining */
+	public RequestBatch<T> removeEventListener(final IBatchListener<T> l) {
+		this.eventListeners.remove(l);
+		return this;
+	}
+
+	/** Returns the items, in the order they were added */
+	public List<Item<T>> getItems() {
+		return Collections.unmodifiableList(items);
+	}
+
+	/** Returns true if the batch is running */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/** Sends all the items, cancelling the batch first if it's running */
+	public void send() {
+		cancel();
+		generation++;
+		running = true;
+		next = 0;
+		pending = items.size();
+		for (final Item<T> item : items) item.reset();
+
+		// Deadline for the whole batch
+		if (deadline > 0) {
+			final int sent = generation;
+			deadlineTask = new Runnable() {
+				@Override public void run() {
+					if (sent == generation && running) abort(ERROR_DEADLINE, "Batch deadline of " + deadline + " ms exceeded");
+				}
+			};
+			Request.postToMainThread(deadlineTask, deadline);
+		}
+
+		if (pending == 0) finish();
+		else while (next < items.size() && next < maxParallel) start(items.get(next++));
+	}
+
+	/** Cancels the batch, if running, without firing onComplete */
+	public void cancel() {
+		if (!running) return;
+		running = false;
+		generation++;
+		if (deadlineTask != null) Request.removeFromMainThread(deadlineTask);
+		deadlineTask = null;
+		for (final Item<T> item : items) item.abort();
+	}
+
+	/** Runs an item in background, through the template dispatcher */
+	private void start(final Item<T> item) {
+		final Map<String, String> headers = new HashMap<>(template.requestHeaders);
+		if (item.requestHeaders != null) headers.putAll(item.requestHeaders);
+		final Request.Call call = template.newCall(item.url, null, headers,
+			item.requestMethod != null ? item.requestMethod : template.requestMethod,
+			item.requestBody != null ? item.requestBody : template.requestBody);
+		final int sent = generation;
+		item.call = call;
+		item.state = Item.RUNNING;
+		final RequestDispatcher dispatcher = template.dispatcher != null ? template.dispatcher : RequestDispatcher.getDefault();
+		final RequestDispatcher.Job job = dispatcher.newJob(item.url, template.priority, new Runnable() {
+			@Override public void run() {
+				synchronized (item.lock) {
+					if (item.call != call) return; // Aborted while queued
+					item.worker = Thread.currentThread();
+				}
+				final Object result;
+				try {
+					result = template.runCall(call);
+				} finally {
+					synchronized (item.lock) {
+						item.worker = null;
+						Thread.interrupted(); // Don't leak an abort() interrupt to the next job of this thread
+					}
+				}
+				Request.postToMainThread(new Runnable() {
+					@Override public void run() {
+						if (sent == generation && running && item.call == call) complete(item, call, result);
+					}
+				});
+			}
+		}, new Runnable() {
+			@Override public void run() {
+				Request.postToMainThread(new Runnable() {
+					@Override public void run() {
+						if (sent == generation && running && item.call == call) complete(item, call, new RequestDispatcher.DroppedException());
+					}
+				});
+			}
+		});
+		item.job = job;
+		dispatcher.enqueue(job); // Kept before, as it may be dropped right away
+		call.armDeadline(job, new Runnable() {
+			@Override public void run() {
+				Request.postToMainThread(new Runnable() {
+					@Override public void run() {
+						if (sent == generation && running && item.call == call) complete(item, call, new Request.DeadlineException(template.deadline));
+					}
+				});
+			}
+		});
+	}
+
+	/** Records the result of an item, fires its event, and starts the next one */
+	private void complete(final Item<T> item, final Request.Call call, final Object result) {
+		item.call = null;
+		item.rawResponse = result instanceof Exception ? null : call.rawResponse;
+		if (result instanceof Exception) {
+			final Exception e = (Exception)result;
+			item.fail(Request.errorCodeOf(e), e.getClass().getSimpleName() + ": " + e.getMessage());
+		} else try {
+			item.succeed(template.toResponse(result));
+		} catch (Request.ErrorResponse e) {
+			item.fail(e.getCode(), e.getMessage());
+		}
+		pending--;
+
+		// Fire item event
+		final int sent = generation;
+		for (final IBatchListener<T> l : eventListeners) l.onItemComplete(item);
+		if (sent != generation || !running) return; // Cancelled by a listener
+
+		// Fail fast, or go on
+		if (failFast && !item.isSuccess()) abort(ERROR_CANCELLED, "Cancelled after the failure of " + item.url);
+		else if (pending == 0) finish();
+		else if (next < items.size()) start(items.get(next++));
+	}
+
+	/** Fails all the items not completed yet, and completes the batch */
+	private void abort(final String code, final String message) {
+		for (final Item<T> item : items) if (item.state != Item.COMPLETE) {
+			item.abort();
+			item.fail(code, message);
+		}
+		pending = 0;
+		finish();
+	}
+
+	/** Completes the batch, firing onComplete */
+	private void finish() {
+		running = false;
+		if (deadlineTask != null) Request.removeFromMainThread(deadlineTask);
+		deadlineTask = null;
+		final List<Item<T>> all = getItems();
+		for (final IBatchListener<T> l : eventListeners) l.onComplete(all);
+	}
+
+	/** An item of the batch: its request, and its response or error once complete */
+	public static final class Item<T> {
+
+		private final static int WAITING = 0;
+		private final static int RUNNING = 1;
+		private final static int COMPLETE = 2;
+
+		private final int index;
+		private final String url;
+		private final String requestMethod;
+		private final Object requestBody;
+		private final Map<String, String> requestHeaders;
+
+		// State, on the main thread, except for the call and the worker thread, handed off under the lock
+		private final Object lock = new Object();
+		private int state = WAITING;
+		private volatile Request.Call call = null;
+		private volatile RequestDispatcher.Job job = null;
+		private Thread worker = null;
+		private T response = null;
+		private String rawResponse = null;
+		private String errorCode = null;
+		private String errorMessage = null;
+
+		private Item(final int index, final String url, final String requestMethod, final Object requestBody, final Map<String, String> requestHeaders) {
+			this.index = index;
+			this.url = url;
+			this.requestMethod = requestMethod;
+			this.requestBody = requestBody;
+			this.requestHeaders = requestHeaders;
+		}
+
+		/** Returns the position of the item in the batch */
+		public int getIndex() {
+			return index;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		/** Returns true if the item is complete, with success or not */
+		public boolean isComplete() {
+			return state == COMPLETE;
+		}
+
+		/** Returns true if the item completed successfully */
+		public boolean isSuccess() {
+			return state == COMPLETE && errorCode == null;
+		}
+
+		/** Returns the response, NULL if not completed successfully */
+		public T getResponse() {
+			return response;
+		}
+
+		/** Returns the raw response as string, NULL if not completed successfully or not available */
+		public String getRawResponse() {
+			return rawResponse;
+		}
+
+		/** Returns the error code, like the one passed to onError(), NULL if completed successfully */
+		public String getErrorCode() {
+			return errorCode;
+		}
+
+		public String getErrorMessage() {
+			return errorMessage;
+		}
+
+		private void reset() {
+			state = WAITING;
+			call = null;
+			job = null;
+			response = null;
+			rawResponse = null;
+			errorCode = null;
+			errorMessage = null;
+		}
+
+		private void succeed(final T response) {
+			state = COMPLETE;
+			this.response = response;
+		}
+
+		private void fail(final String code, final String message) {
+			state = COMPLETE;
+			this.errorCode = code;
+			this.errorMessage = message;
+		}
+
+		/** Stops the request of the item, if running */
+		private void abort() {
+			final Request.Call call;
+			synchronized (lock) {
+				call = this.call;
+				this.call = null;
+				if (worker != null) worker.interrupt(); // Stops retry waits, only while the thread still runs this item
+			}
+			final RequestDispatcher.Job job = this.job;
+			this.job = null;
+			if (job != null) job.getDispatcher().remove(job); // Free its place in the queue, if still waiting
+			if (call != null && call.connection != null) RequestScheduler.execute(new Runnable() {
+				@Override public void run() {
+					call.disconnect();
+				}
+			});
+		}
+
+	}
+
+	/** Batch event listener interface */
+	public interface IBatchListener<T> {
+
+		/** When an item completes, successfully or not */
+		void onItemComplete(Item<T> item);
+
+		/** When all the items are complete, or the batch failed fast or exceeded its deadline */
+		void onComplete(List<Item<T>> items);
+
+	}
+
+	/** Batch event listener with empty methods, to override only some of them */
+	public static class EventListener<T> implements IBatchListener<T> {
+		@Override public void onItemComplete(final Item<T> item) { }
+		@Override public void onComplete(final List<Item<T>> items) { }
+	}
+
+}
@@ -0,0 +1,268 @@
+package com.lorenzostanco.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A request body streamed to the connection instead of being built as a String: bytes, a file, an
+ * input stream or a multipart/form-data form. Bodies of known length are sent in fixed-length
+ * streaming mode, the others in chunked mode, so {@link java.net.HttpURLConnection} never buffers
+ * them and uploads run in constant memory. Listeners implementing {@link Request.IUploadProgressListener}
+ * are notified of the upload progress. Byte arrays, files and input streams passed to
+ * setRequestBody() are wrapped automatically, as "application/octet-stream".
+ *
+ * <pre>
+ * ws.setRequestMethodAndBody("POST", new RequestBody.Multipart()
+ * 	.addField("title", "Holidays")
+ * 	.addFile("photo", new File(path), "image/jpeg"));
+ * </pre>
+ */
+@SuppressWarnings({ "unused", "RedundantSuppression" })
+public abstract class RequestBody {
+
+	public final static String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+	private final String contentType;
+
+	protected RequestBody(final String contentType) {
+		this.contentType = contentType != null ? contentType : DEFAULT_CONTENT_TYPE;
+	}
+
+	/** Returns a body of bytes */
+	public static RequestBody of(final byte[] bytes, final String contentType) {
+		return new Bytes(bytes, contentType);
+	}
+
+	/** Returns a body read from a file, when sent */
+	public static RequestBody of(final File file, final String contentType) {
+		return new FileBody(file, contentType);
+	}
+
+	/** Returns a body read from a stream, that can be sent only once: requests with it are never retried.
+	 * The stream is closed after sending.
+	 * @param length Number of bytes to send, -1 to send the whole stream in chunked mode */
+	public static RequestBody of(final InputStream in, final long length, final String contentType) {
+		return new Stream(in, length, contentType);
+	}
+
+	/** Wraps byte arrays, files and input streams, returns other request bodies as they are, NULL for any other object */
+	static RequestBody wrap(final Object body) {
+		if (body instanceof RequestBody) return (RequestBody)body;
+		if (body instanceof byte[]) return of((byte[])body, null);
+		if (body instanceof File) return of((File)body, null);
+		if (body instanceof InputStream) return of((InputStream)body, -1, null);
+		return null;
+	}
+
+	/** Returns the Content-Type header value */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/** Returns the length in bytes, or -1 if unknown */
+	public abstract long getLength();
+
+	/** Returns true if the body can be sent more than once, e.g. to retry a request */
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	/** Writes the whole body */
+	public abstract void writeTo(final OutputStream out) throws IOException;
+
+	/** Copies a stream to another with a pooled buffer, up to a number of bytes, -1 for all */
+	static long copy(final InputStream in, final OutputStream out, final long length) throws IOException {
+		final ByteBuffer buffer = RequestBufferPool.obtainBytes();
+		try {
+			final byte[] b = buffer.array();
+			long copied = 0;
+			while (length < 0 || copied < length) {
+				final int read = in.read(b, 0, length < 0 ? b.length : (int)Math.min(b.length, length - copied));
+				if (read < 0) break;
+				out.write(b, 0, read);
+				copied += read;
+			}
+			if (length >= 0 && copied < length) throw new IOException("Request body ended after " + copied + " of " + length + " bytes");
+			return copied;
+		} finally {
+			RequestBufferPool.recycle(buffer);
+		}
+	}
+
+	/** A body of bytes */
+	private static class Bytes extends RequestBody {
+
+		private final byte[] bytes;
+
+		private Bytes(final byte[] bytes, final String contentType) {
+			super(contentType);
+			this.bytes = bytes;
+		}
+
+		@Override public long getLength() {
+			return bytes.length;
+		}
+
+		@Override public void writeTo(final OutputStream out) throws IOException {
+			out.write(bytes);
+		}
+
+	}
+
+	/** A body read from a file */
+	private static class FileBody extends RequestBody {
+
+		private final File file;
+
+		private FileBody(final File file, final String contentType) {
+			super(contentType);
+			this.file = file;
+		}
+
+		@Override public long getLength() {
+			return file.length();
+		}
+
+		@Override public void writeTo(final OutputStream out) throws IOException {
+			final InputStream in = new FileInputStream(file);
+			try {
+				copy(in, out, getLength());
+			} finally {
+				in.close();
+			}
+		}
+
+	}
+
+	/** A body read from a stream, only once */
+	private static class Stream extends RequestBody {
+
+		private final InputStream in;
+		private final long length;
+
+		private Stream(final InputStream in, final long length, final String contentType) {
+			super(contentType);
+			this.in = in;
+			this.length = length;
+		}
+
+		@Override public long getLength() {
+			return length;
+		}
+
+		@Override public boolean isRepeatable() {
+			return false;
+		}
+
+		@Override public void writeTo(final OutputStream out) throws IOException {
+			try {
+				copy(in, out, length);
+			} finally {
+				in.close();
+			}
+		}
+
+	}
+
+	/** A multipart/form-data body, with text fields and files. Its length is known, and it's sent in
+	 * fixed-length mode, unless a part has unknown length. */
+	public static class Multipart extends RequestBody {
+
+		private final static byte[] CRLF = { '\r', '\n' };
+		private final static byte[] DASHES = { '-', '-' };
+
+		private final String boundary;
+		private final List<byte[]> headers = new ArrayList<>();
+		private final List<RequestBody> parts = new ArrayList<>();
+
+		/** Initializes an empty form */
+		public Multipart() {
+			this(newBoundary());
+		}
+
+		private Multipart(final String boundary) {
+			super("multipart/form-data; boundary=" + boundary);
+			this.boundary = boundary;
+		}
+
+		/** Adds a text field
+		 * @return This object, for chaining */
+		public Multipart addField(final String name, final String value) {
+			return addPart(name, null, of(utf8(value), "text/plain; charset=UTF-8"));
+		}
+
+		/** Adds a file, with its name as file name
+		 * @return This object, for chaining */
+		public Multipart addFile(final String name, final File file, final String contentType) {
+			return addPart(name, file.getName(), of(file, contentType));
+		}
+
+		/** Adds a part with any body
+		 * @param fileName File name for file parts, NULL for fields
+		 * @return This object, for chaining */
+		public Multipart addPart(final String name, final String fileName, final RequestBody body) {
+			final StringBuilder header = new StringBuilder();
+			header.append("--").append(boundary).append("\r\n");
+			header.append("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+			if (fileName != null) header.append("; filename=\"").append(escape(fileName)).append('"');
+			header.append("\r\n");
+			if (fileName != null) header.append("Content-Type: ").append(body.getContentType()).append("\r\n");
+			header.append("\r\n");
+			headers.add(utf8(header.toString()));
+			parts.add(body);
+			return this;
+		}
+
+		@Override public long getLength() {
+			long length = 0;
+			for (int i = 0; i < parts.size(); i++) {
+				final long partLength = parts.get(i).getLength();
+				if (partLength < 0) return -1;
+				length += headers.get(i).length + partLength + CRLF.length;
+			}
+			return length + DASHES.length + boundary.length() + DASHES.length + CRLF.length;
+		}
+
+		@Override public boolean isRepeatable() {
+			for (final RequestBody part : parts) if (!part.isRepeatable()) return false;
+			return true;
+		}
+
+		@Override public void writeTo(final OutputStream out) throws IOException {
+			for (int i = 0; i < parts.size(); i++) {
+				out.write(headers.get(i));
+				parts.get(i).writeTo(out);
+				out.write(CRLF);
+			}
+			out.write(DASHES);
+			out.write(utf8(boundary));
+			out.write(DASHES);
+			out.write(CRLF);
+		}
+
+		private static String newBoundary() {
+			return "----RequestBoundary" + Long.toHexString(new Random().nextLong()) + Long.toHexString(System.nanoTime());
+		}
+
+		private static String escape(final String s) {
+			return s.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+		}
+
+		private static byte[] utf8(final String s) {
+			try {
+				return s.getBytes("UTF-8");
+			} catch (java.io.UnsupportedEncodingException x) {
+				throw new IllegalStateException(x);
+			}
+		}
+
+	}
+
+}
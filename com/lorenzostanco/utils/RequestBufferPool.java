@@ -0,0 +1,125 @@
+package com.lorenzostanco.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reusable buffers shared by all {@link Request} subclasses to read responses: byte and char
+ * buffers for decoding, direct byte buffers for downloads, and charset decoders per thread.
+ * Allocation and reuse counters show whether requests in steady state allocate anything beyond
+ * their results: the allocated count should stop growing after the first requests.
+ */
+@SuppressWarnings({ "unused", "RedundantSuppression" })
+public final class RequestBufferPool {
+
+	public final static int BYTE_BUFFER_SIZE = 8 * 1024;
+	public final static int CHAR_BUFFER_SIZE = 8 * 1024;
+	public final static int DIRECT_BUFFER_SIZE = 64 * 1024;
+	public final static int MAX_POOLED_BUFFERS = 8;
+
+	// Pools, guarded by themselves
+	private final static ArrayDeque<ByteBuffer> byteBuffers = new ArrayDeque<>();
+	private final static ArrayDeque<CharBuffer> charBuffers = new ArrayDeque<>();
+	private final static ArrayDeque<ByteBuffer> directBuffers = new ArrayDeque<>();
+
+	// Decoders are stateful, so one per charset per thread
+	private final static ThreadLocal<Map<Charset, CharsetDecoder>> decoders = new ThreadLocal<>();
+
+	// Counters, guarded by the class
+	private static long allocatedCount = 0;
+	private static long allocatedBytes = 0;
+	private static long reusedCount = 0;
+
+	private RequestBufferPool() { }
+
+	/** Returns the number of buffers allocated so far, because the pool was empty */
+	public static synchronized long getAllocatedCount() {
+		return allocatedCount;
+	}
+
+	/** Returns the memory allocated for buffers so far, in bytes */
+	public static synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/** Returns the number of times a pooled buffer was reused instead of allocating one */
+	public static synchronized long getReusedCount() {
+		return reusedCount;
+	}
+
+	/** Takes a heap byte buffer of BYTE_BUFFER_SIZE, cleared, with an accessible array */
+	static ByteBuffer obtainBytes() {
+		final ByteBuffer buffer = poll(byteBuffers);
+		return buffer != null ? buffer : allocated(ByteBuffer.allocate(BYTE_BUFFER_SIZE), BYTE_BUFFER_SIZE);
+	}
+
+	/** Takes a char buffer of CHAR_BUFFER_SIZE, cleared, with an accessible array */
+	static CharBuffer obtainChars() {
+		final CharBuffer buffer = poll(charBuffers);
+		return buffer != null ? buffer : allocated(CharBuffer.allocate(CHAR_BUFFER_SIZE), CHAR_BUFFER_SIZE * 2);
+	}
+
+	/** Takes a direct byte buffer of DIRECT_BUFFER_SIZE, cleared, for channel I/O */
+	static ByteBuffer obtainDirectBytes() {
+		final ByteBuffer buffer = poll(directBuffers);
+		return buffer != null ? buffer : allocated(ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE), DIRECT_BUFFER_SIZE);
+	}
+
+	/** Gives back a buffer taken with obtainBytes() or obtainDirectBytes() */
+	static void recycle(final ByteBuffer buffer) {
+		buffer.clear();
+		offer(buffer.isDirect() ? directBuffers : byteBuffers, buffer);
+	}
+
+	/** Gives back a buffer taken with obtainChars() */
+	static void recycle(final CharBuffer buffer) {
+		buffer.clear();
+		offer(charBuffers, buffer);
+	}
+
+	/** Returns a reset decoder of the current thread, replacing malformed input like InputStreamReader does */
+	static CharsetDecoder decoder(final Charset charset) {
+		Map<Charset, CharsetDecoder> map = decoders.get();
+		if (map == null) decoders.set(map = new HashMap<>());
+		CharsetDecoder decoder = map.get(charset);
+		if (decoder == null) {
+			decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+			map.put(charset, decoder);
+		} else {
+			decoder.reset();
+		}
+		return decoder;
+	}
+
+	private static <B> B poll(final ArrayDeque<B> pool) {
+		final B buffer;
+		synchronized (pool) {
+			buffer = pool.poll();
+		}
+		if (buffer != null) synchronized (RequestBufferPool.class) {
+			reusedCount++;
+		}
+		return buffer;
+	}
+
+	private static <B> void offer(final ArrayDeque<B> pool, final B buffer) {
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED_BUFFERS) pool.push(buffer);
+		}
+	}
+
+	private static <B> B allocated(final B buffer, final int bytes) {
+		synchronized (RequestBufferPool.class) {
+			allocatedCount++;
+			allocatedBytes += bytes;
+		}
+		return buffer;
+	}
+
+}
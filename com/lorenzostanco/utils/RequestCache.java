@@ -0,0 +1,498 @@
+package com.lorenzostanco.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Size-bounded, LRU, on-disk cache for GET responses, honoring <code>Cache-Control</code> and
+ * <code>Expires</code>, and revalidating stale entries with <code>If-None-Match</code> and
+ * <code>If-Modified-Since</code> so that a 304 response is served from disk.
+ * Plug it into a single {@link Request} with setCache(), or into all of them (and into the
+ * sync helpers too) with {@link #setDefault(RequestCache)}.
+ *
+ * <pre>
+ * RequestCache.setDefault(new RequestCache(new File(context.getCacheDir(), "ws"), 10 * 1024 * 1024));
+ * </pre>
+ */
+@SuppressWarnings({ "unused", "Convert2Lambda", "Anonymous2MethodRef", "RedundantSuppression" })
+public final class RequestCache {
+
+	private final static String META_SUFFIX = ".0";
+	private final static String BODY_SUFFIX = ".1";
+	private final static String TEMP_SUFFIX = ".tmp";
+
+	private static RequestCache defaultCache = null;
+
+	private final File directory;
+	private final long maxSize;
+
+	// Entries in access order, guarded by this, loaded from disk on first use
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private boolean initialized = false;
+	private long size = 0;
+
+	// Statistics, guarded by this
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long revalidatedCount = 0;
+	private long evictedCount = 0;
+
+	/** Returns the cache used by all requests that don't set their own, and by sync helpers, NULL if none */
+	public static synchronized RequestCache getDefault() {
+		return defaultCache;
+	}
+
+	/** Sets the cache used by all requests that don't set their own, and by sync helpers, NULL to disable */
+	public static synchronized void setDefault(final RequestCache cache) {
+		defaultCache = cache;
+	}
+
+	/** Initializes a cache. Nothing is read from disk until the first request.
+	 * @param directory A directory reserved to this cache, will be created if missing
+	 * @param maxSize Max total size of cached responses, in bytes */
+	public RequestCache(final File directory, final long maxSize) {
+		if (maxSize <= 0) throw new IllegalArgumentException("Max size must be positive");
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/** Returns the total size of cached responses, in bytes */
+	public synchronized long getSize() {
+		initialize();
+		return size;
+	}
+
+	/** Returns the number of responses served from disk without touching the network */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/** Returns the number of cacheable requests whose response had to be downloaded */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/** Returns the number of stale responses served from disk after a 304 from the server */
+	public synchronized long getRevalidatedCount() {
+		return revalidatedCount;
+	}
+
+	/** Returns the number of entries evicted to stay under the max size */
+	public synchronized long getEvictedCount() {
+		return evictedCount;
+	}
+
+	/** Removes a single response from the cache */
+	public synchronized void remove(final String url) {
+		initialize();
+		discard(keyOf(url));
+	}
+
+	/** Removes all responses from the cache */
+	public synchronized void evictAll() {
+		initialize();
+		for (final Entry entry : entries.values()) delete(entry);
+		entries.clear();
+		size = 0;
+	}
+
+	/** Returns TRUE if a request could be answered from cache or stored in it. Authorized requests are not: entries are
+	 * keyed by URL only, and their responses would be served to any other user. */
+	static boolean isCacheable(final String requestMethod, final Object requestBody, final Map<String, String> requestHeaders) {
+		if (requestBody != null || !requestMethod.equalsIgnoreCase("GET")) return false;
+		if (header(requestHeaders, "Authorization") != null) return false;
+		final String cacheControl = header(requestHeaders, "Cache-Control");
+		return cacheControl == null || !cacheControl.toLowerCase(Locale.US).contains("no-store");
+	}
+
+	/** Returns TRUE if the request headers ask to revalidate even fresh responses */
+	static boolean isNoCacheRequest(final Map<String, String> requestHeaders) {
+		final String cacheControl = header(requestHeaders, "Cache-Control");
+		return cacheControl != null && cacheControl.toLowerCase(Locale.US).contains("no-cache");
+	}
+
+	/** Returns the cached entry for an URL, or NULL */
+	synchronized Entry get(final String url) {
+		initialize();
+		final Entry entry = entries.get(keyOf(url));
+		if (entry == null || !entry.url.equals(url)) return null;
+		return entry;
+	}
+
+	/** Opens a fresh entry, counting a hit */
+	InputStream hit(final Entry entry) throws IOException {
+		final InputStream in = entry.open();
+		synchronized (this) {
+			hitCount++;
+		}
+		return in;
+	}
+
+	/** Opens a stale entry the server said it's still valid, updating its freshness */
+	InputStream revalidated(final Entry entry, final HttpURLConnection connection) throws IOException {
+		final InputStream in = entry.open();
+		final Entry updated = new Entry(entry.key, entry.url,
+			connection.getHeaderField("ETag") != null ? connection.getHeaderField("ETag") : entry.etag,
+			connection.getHeaderField("Last-Modified") != null ? connection.getHeaderField("Last-Modified") : entry.lastModified,
+			entry.contentType, expirationOf(connection, System.currentTimeMillis()), entry.length);
+		try {
+			writeMeta(updated);
+		} catch (IOException ignored) { }
+		synchronized (this) {
+			revalidatedCount++;
+			if (entries.get(entry.key) == entry) entries.put(entry.key, updated);
+		}
+		return in;
+	}
+
+	/** Counts a miss and, if the response can be stored, returns a stream that saves it while it's read */
+	InputStream miss(final String url, final HttpURLConnection connection, final InputStream in) {
+		synchronized (this) {
+			missCount++;
+		}
+
+		// Responses that must not or cannot be stored
+		if (Request.contentLengthOf(connection) > maxSize) return in;
+		final String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl != null && cacheControl.toLowerCase(Locale.US).contains("no-store")) return in;
+		if (!isVaryCacheable(connection.getHeaderField("Vary"))) return in; // Entries are keyed by URL only
+		final long now = System.currentTimeMillis();
+		final long expires = expirationOf(connection, now);
+		final String etag = connection.getHeaderField("ETag");
+		final String lastModified = connection.getHeaderField("Last-Modified");
+		if (expires <= now && etag == null && lastModified == null) return in; // Neither fresh nor revalidable, useless
+
+		// Write while reading
+		try {
+			synchronized (this) {
+				initialize();
+			}
+			return new WritingStream(in, new Entry(keyOf(url), url, etag, lastModified, connection.getContentType(), expires, 0));
+		} catch (IOException x) {
+			return in;
+		}
+
+	}
+
+	/** Loads the index from disk, least recently used first */
+	private void initialize() {
+		if (initialized) return;
+		initialized = true;
+		if (!directory.isDirectory() && !directory.mkdirs()) return;
+		final File[] files = directory.listFiles();
+		if (files == null) return;
+		final List<Entry> loaded = new ArrayList<>();
+		for (final File file : files) {
+			final String name = file.getName();
+			if (name.endsWith(TEMP_SUFFIX)) {
+				//noinspection ResultOfMethodCallIgnored
+				file.delete();
+			} else if (name.endsWith(META_SUFFIX)) {
+				final Entry entry = readMeta(name.substring(0, name.length() - META_SUFFIX.length()));
+				if (entry != null) loaded.add(entry);
+			}
+		}
+		Collections.sort(loaded, new Comparator<Entry>() {
+			@Override public int compare(final Entry a, final Entry b) {
+				final long am = a.bodyFile().lastModified(), bm = b.bodyFile().lastModified();
+				return am < bm ? -1 : (am == bm ? 0 : 1);
+			}
+		});
+		for (final Entry entry : loaded) {
+			entries.put(entry.key, entry);
+			size += entry.length;
+		}
+		trim();
+	}
+
+	/** Adds a completely written entry, replacing the old one, then evicts LRU entries if over max size */
+	private synchronized void commit(final Entry entry) {
+		final Entry old = entries.put(entry.key, entry);
+		if (old != null) size -= old.length;
+		size += entry.length;
+		trim();
+	}
+
+	/** Removes an entry from the index, if there, and deletes its files anyway */
+	private synchronized void discard(final String key) {
+		final Entry entry = entries.remove(key);
+		delete(entry != null ? entry : new Entry(key, null, null, null, null, 0, 0));
+	}
+
+	/** Evicts least recently used entries until size is under max size */
+	private void trim() {
+		final Iterator<Entry> i = entries.values().iterator();
+		while (size > maxSize && i.hasNext()) {
+			final Entry entry = i.next();
+			i.remove();
+			delete(entry);
+			evictedCount++;
+		}
+	}
+
+	/** Deletes entry files and subtract its size */
+	private void delete(final Entry entry) {
+		size -= entry.length;
+		//noinspection ResultOfMethodCallIgnored
+		entry.metaFile().delete();
+		//noinspection ResultOfMethodCallIgnored
+		entry.bodyFile().delete();
+	}
+
+	/** Reads entry metadata from disk, NULL on any error */
+	private Entry readMeta(final String key) {
+		final Entry entry = new Entry(key, null, null, null, null, 0, 0);
+		try {
+			final Properties meta = new Properties();
+			final InputStream in = new FileInputStream(entry.metaFile());
+			try {
+				meta.load(in);
+			} finally {
+				in.close();
+			}
+			final File body = entry.bodyFile();
+			if (!body.isFile() || meta.getProperty("url") == null) throw new IOException("Incomplete entry");
+			return new Entry(key, meta.getProperty("url"), meta.getProperty("etag"), meta.getProperty("last-modified"), meta.getProperty("content-type"), Long.parseLong(meta.getProperty("expires", "0")), body.length());
+		} catch (Exception x) {
+			delete(entry);
+			return null;
+		}
+	}
+
+	/** Writes entry metadata to disk, atomically */
+	private void writeMeta(final Entry entry) throws IOException {
+		final Properties meta = new Properties();
+		meta.setProperty("url", entry.url);
+		if (entry.etag != null) meta.setProperty("etag", entry.etag);
+		if (entry.lastModified != null) meta.setProperty("last-modified", entry.lastModified);
+		if (entry.contentType != null) meta.setProperty("content-type", entry.contentType);
+		meta.setProperty("expires", String.valueOf(entry.expires));
+		final File temp = new File(directory, entry.key + META_SUFFIX + TEMP_SUFFIX);
+		final OutputStream out = new FileOutputStream(temp);
+		try {
+			meta.store(out, null);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(entry.metaFile())) throw new IOException("Cannot write cache entry");
+	}
+
+	/** Computes the expiration time of a response, from Cache-Control max-age or from Expires, 0 if must be revalidated */
+	static long expirationOf(final HttpURLConnection connection, final long now) {
+		final String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl != null) for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+			directive = directive.trim();
+			if (directive.equals("no-cache")) return 0;
+			if (directive.startsWith("max-age=")) try {
+				final String age = connection.getHeaderField("Age");
+				final long maxAge = Long.parseLong(directive.substring(8).trim()) - (age != null ? Long.parseLong(age.trim()) : 0);
+				return maxAge > 0 ? now + maxAge * 1000 : 0;
+			} catch (NumberFormatException x) {
+				return 0;
+			}
+		}
+		final long expires = connection.getExpiration();
+		final long date = connection.getDate();
+		if (expires <= 0) return 0;
+		return date > 0 ? now + (expires - date) : expires; // Relative to server clock when possible
+	}
+
+	/** Returns TRUE if a response varying on these request headers can be keyed by URL only: it may vary just on
+	 * Accept-Encoding, as bodies are stored decompressed */
+	private static boolean isVaryCacheable(final String vary) {
+		if (vary == null) return true;
+		for (final String name : vary.split(",")) {
+			final String trimmed = name.trim();
+			if (!trimmed.isEmpty() && !trimmed.equalsIgnoreCase("Accept-Encoding")) return false;
+		}
+		return true;
+	}
+
+	/** Returns a request header value, case insensitive */
+	private static String header(final Map<String, String> headers, final String name) {
+		if (headers != null) for (final Map.Entry<String, String> header : headers.entrySet()) {
+			if (header.getKey().equalsIgnoreCase(name)) return header.getValue();
+		}
+		return null;
+	}
+
+	/** Returns the file name of an entry, an hex MD5 hash of the URL */
+	private static String keyOf(final String url) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+			final StringBuilder key = new StringBuilder(digest.length * 2);
+			for (final byte b : digest) key.append(String.format("%02x", b & 0xff));
+			return key.toString();
+		} catch (Exception x) {
+			return Integer.toHexString(url.hashCode());
+		}
+	}
+
+	/** A cached response, immutable, replaced as a whole on updates */
+	final class Entry {
+
+		private final String key;
+		private final String url;
+		final String etag;
+		final String lastModified;
+		final String contentType;
+		private final long expires;
+		private final long length;
+
+		private Entry(final String key, final String url, final String etag, final String lastModified, final String contentType, final long expires, final long length) {
+			this.key = key;
+			this.url = url;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.contentType = contentType;
+			this.expires = expires;
+			this.length = length;
+		}
+
+		/** Returns the size of the cached body, in bytes */
+		long getLength() {
+			return length;
+		}
+
+		/** Returns TRUE if the entry can be used without revalidation */
+		boolean isFresh() {
+			return System.currentTimeMillis() < expires;
+		}
+
+		private InputStream open() throws IOException {
+			final File body = bodyFile();
+			//noinspection ResultOfMethodCallIgnored
+			body.setLastModified(System.currentTimeMillis()); // Keep LRU order across restarts
+			return new FileInputStream(body);
+		}
+
+		private File metaFile() {
+			return new File(directory, key + META_SUFFIX);
+		}
+
+		private File bodyFile() {
+			return new File(directory, key + BODY_SUFFIX);
+		}
+
+	}
+
+	/** A stream that saves what's read into a new entry, committed only if read up to the end. Parsers often stop at the
+	 * closing token and close the stream before EOF, so on close the rest of the response is drained into the entry. */
+	private final class WritingStream extends FilterInputStream {
+
+		private final Entry entry;
+		private final File temp;
+		private OutputStream out;
+		private long length = 0;
+		private boolean complete = false;
+
+		private WritingStream(final InputStream in, final Entry entry) throws IOException {
+			super(in);
+			this.entry = entry;
+			this.temp = new File(directory, entry.key + BODY_SUFFIX + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+			this.out = new FileOutputStream(temp);
+		}
+
+		@Override public int read() throws IOException {
+			final int b = super.read();
+			if (b < 0) complete = true; else write(new byte[] { (byte)b }, 0, 1);
+			return b;
+		}
+
+		@Override public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+			final int read = super.read(buffer, offset, count);
+			if (read < 0) complete = true; else write(buffer, offset, read);
+			return read;
+		}
+
+		@Override public long skip(final long n) throws IOException {
+			abort(); // Skipped bytes would be missing from the entry
+			return super.skip(n);
+		}
+
+		@Override public boolean markSupported() {
+			return false;
+		}
+
+		@Override public void close() throws IOException {
+			drain();
+			super.close();
+			if (out == null) return;
+			try {
+				out.close();
+				out = null;
+				if (!complete || length > maxSize) throw new IOException("Incomplete response");
+				final Entry written = new Entry(entry.key, entry.url, entry.etag, entry.lastModified, entry.contentType, entry.expires, length);
+				if (!temp.renameTo(written.bodyFile())) throw new IOException("Cannot write cache entry");
+				try {
+					writeMeta(written);
+				} catch (IOException x) {
+					discard(entry.key); // Never leave a new body with old validators
+					throw x;
+				}
+				commit(written);
+			} catch (IOException x) {
+				abort();
+			}
+		}
+
+		/** Reads the rest of the response into the entry, if still writing it, giving up on errors */
+		private void drain() {
+			if (out == null || complete) return;
+			final byte[] buffer = new byte[8192];
+			try {
+				while (out != null && read(buffer, 0, buffer.length) >= 0) { }
+			} catch (IOException x) {
+				abort();
+			}
+		}
+
+		/** Writes to the entry, giving up on errors or once too large, without affecting the reader */
+		private void write(final byte[] buffer, final int offset, final int count) {
+			if (out == null) return;
+			try {
+				out.write(buffer, offset, count);
+				length += count;
+				if (length > maxSize) abort();
+			} catch (IOException x) {
+				abort();
+			}
+		}
+
+		/** Stops writing and deletes the partial entry */
+		private void abort() {
+			if (out != null) try {
+				out.close();
+			} catch (IOException ignored) { }
+			out = null;
+			//noinspection ResultOfMethodCallIgnored
+			temp.delete();
+		}
+
+	}
+
+}
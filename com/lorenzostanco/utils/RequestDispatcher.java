@@ -0,0 +1,368 @@
+package com.lorenzostanco.utils;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs requests in background on a bounded thread pool, with a global limit on requests
+ * in flight, a per-host limit, and a wait queue for requests over those limits, ordered
+ * by {@link Priority} and then FIFO. Requests can be reprioritized while they wait, and
+ * prefetches are dropped when too many requests are waiting.
+ * All {@link Request} instances share the default dispatcher, unless they set their own.
+ *
+ * <pre>
+ * RequestDispatcher.getDefault().setMaxRequestsPerHost(8);
+ * Log.i("WS", "Queued: " + RequestDispatcher.getDefault().getQueuedCount());
+ * </pre>
+ */
+@SuppressWarnings({ "unused", "Convert2Lambda", "Anonymous2MethodRef", "RedundantSuppression" })
+public final class RequestDispatcher {
+
+	public final static int DEFAULT_MAX_REQUESTS = 16;
+	public final static int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+	public final static int KEEP_ALIVE_SECONDS = 30;
+	public final static int DEFAULT_MAX_QUEUED = 64;
+
+	/** Priority of a request, in descending order */
+	public enum Priority {
+		/** Needed right now, e.g. for the visible screen */
+		IMMEDIATE,
+		/** Default priority */
+		NORMAL,
+		/** May be needed later: dropped if too many requests are waiting */
+		PREFETCH
+	}
+
+	private static RequestDispatcher defaultDispatcher = null;
+
+	// Limits
+	private int maxRequests;
+	private int maxRequestsPerHost;
+	private int maxQueued = DEFAULT_MAX_QUEUED;
+
+	// Worker threads, never more than maxRequests
+	private final ThreadPoolExecutor executor;
+
+	// Waiting jobs by priority, and running jobs, guarded by this
+	private final Map<Priority, ArrayDeque<Job>> queues = new EnumMap<>(Priority.class);
+	private final Map<String, Integer> runningPerHost = new HashMap<>();
+	private int queued = 0;
+	private int running = 0;
+
+	// Statistics, guarded by this
+	private int peakQueued = 0;
+	private int peakRunning = 0;
+	private long completed = 0;
+	private long dropped = 0;
+	private final Map<Priority, RequestMetrics.Histogram> queueWaits = new EnumMap<>(Priority.class);
+
+	/** Returns the dispatcher shared by all requests that don't set their own */
+	public static synchronized RequestDispatcher getDefault() {
+		if (defaultDispatcher == null) defaultDispatcher = new RequestDispatcher();
+		return defaultDispatcher;
+	}
+
+	/** Replaces the dispatcher shared by all requests that don't set their own */
+	public static synchronized void setDefault(final RequestDispatcher dispatcher) {
+		defaultDispatcher = dispatcher;
+	}
+
+	/** Initializes a dispatcher with default limits */
+	public RequestDispatcher() {
+		this(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST);
+	}
+
+	/** Initializes a dispatcher
+	 * @param maxRequests Max number of requests running at the same time
+	 * @param maxRequestsPerHost Max number of requests running at the same time to the same host */
+	public RequestDispatcher(final int maxRequests, final int maxRequestsPerHost) {
+		if (maxRequests < 1 || maxRequestsPerHost < 1) throw new IllegalArgumentException("Limits must be at least 1");
+		this.maxRequests = maxRequests;
+		this.maxRequestsPerHost = maxRequestsPerHost;
+		this.executor = new ThreadPoolExecutor(maxRequests, maxRequests, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(1);
+			@Override public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "Request #" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+		for (final Priority priority : Priority.values()) {
+			this.queues.put(priority, new ArrayDeque<Job>());
+			this.queueWaits.put(priority, new RequestMetrics.Histogram());
+		}
+	}
+
+	/** Returns an executor that runs tasks through this dispatcher with NORMAL priority, counting them against the host of the given URL */
+	public Executor executorFor(final String url) {
+		return executorFor(url, Priority.NORMAL);
+	}
+
+	/** Returns an executor that runs tasks through this dispatcher with the given priority, counting them against the host
+	 * of the given URL. Tasks submitted this way are never dropped, even if PREFETCH. */
+	public Executor executorFor(final String url, final Priority priority) {
+		return new Executor() {
+			@Override public void execute(final Runnable task) {
+				submit(url, priority, task, null);
+			}
+		};
+	}
+
+	/** Adds a task to the queue, and starts it if there are free slots
+	 * @param onDropped Run if the task is dropped because too many are waiting, NULL to never drop it
+	 * @return The job, to reprioritize it while it waits */
+	Job submit(final String url, final Priority priority, final Runnable task, final Runnable onDropped) {
+		final Job job = newJob(url, priority, task, onDropped);
+		enqueue(job);
+		return job;
+	}
+
+	/** Creates a job without queueing it, so that the caller can keep it before enqueue(), which may already drop it
+	 * @param onDropped Run if the task is dropped because too many are waiting, NULL to never drop it */
+	Job newJob(final String url, final Priority priority, final Runnable task, final Runnable onDropped) {
+		return new Job(hostOf(url), priority, task, onDropped);
+	}
+
+	/** Changes the priority of a job, if still waiting: it goes at the end of the queue of its new priority, where it may be
+	 * dropped right away if demoted to PREFETCH while too many jobs are waiting */
+	void reprioritize(final Job job, final Priority priority) {
+		synchronized (this) {
+			if (job.priority == priority) return;
+			if (queues.get(job.priority).remove(job)) queues.get(priority).addLast(job);
+			job.priority = priority;
+		}
+		promote();
+		if (priority == Priority.PREFETCH) drop();
+	}
+
+	/** Removes a job from the queue, if still waiting, e.g. because its request has been cancelled
+	 * @return True if removed, false if already started, dropped or removed */
+	boolean remove(final Job job) {
+		synchronized (this) {
+			if (!queues.get(job.priority).remove(job)) return false;
+			queued--;
+		}
+		return true;
+	}
+
+	/** Sets the max number of requests waiting, before dropping prefetches, default is DEFAULT_MAX_QUEUED.
+	 * Requests with higher priority are never dropped, so the queue can still grow over this limit. */
+	public void setMaxQueued(final int maxQueued) {
+		if (maxQueued < 0) throw new IllegalArgumentException("Limit can't be negative");
+		synchronized (this) {
+			this.maxQueued = maxQueued;
+		}
+		drop();
+	}
+
+	/** Sets the max number of requests running at the same time */
+	public void setMaxRequests(final int maxRequests) {
+		if (maxRequests < 1) throw new IllegalArgumentException("Limit must be at least 1");
+		synchronized (this) {
+			this.maxRequests = maxRequests;
+			if (maxRequests > this.executor.getMaximumPoolSize()) {
+				this.executor.setMaximumPoolSize(maxRequests);
+				this.executor.setCorePoolSize(maxRequests);
+			} else {
+				this.executor.setCorePoolSize(maxRequests);
+				this.executor.setMaximumPoolSize(maxRequests);
+			}
+		}
+		promote();
+	}
+
+	/** Sets the max number of requests running at the same time to the same host */
+	public void setMaxRequestsPerHost(final int maxRequestsPerHost) {
+		if (maxRequestsPerHost < 1) throw new IllegalArgumentException("Limit must be at least 1");
+		synchronized (this) {
+			this.maxRequestsPerHost = maxRequestsPerHost;
+		}
+		promote();
+	}
+
+	public synchronized int getMaxRequests() {
+		return maxRequests;
+	}
+
+	public synchronized int getMaxRequestsPerHost() {
+		return maxRequestsPerHost;
+	}
+
+	public synchronized int getMaxQueued() {
+		return maxQueued;
+	}
+
+	/** Returns the number of requests waiting for a free slot */
+	public synchronized int getQueuedCount() {
+		return queued;
+	}
+
+	/** Returns the number of requests of a priority waiting for a free slot */
+	public synchronized int getQueuedCount(final Priority priority) {
+		return queues.get(priority).size();
+	}
+
+	/** Returns the number of requests running */
+	public synchronized int getRunningCount() {
+		return running;
+	}
+
+	/** Returns the number of requests running to the host of the given URL */
+	public synchronized int getRunningCount(final String url) {
+		final Integer count = runningPerHost.get(hostOf(url));
+		return count == null ? 0 : count;
+	}
+
+	/** Returns the highest number of requests ever waiting at the same time */
+	public synchronized int getPeakQueuedCount() {
+		return peakQueued;
+	}
+
+	/** Returns the highest number of requests ever running at the same time */
+	public synchronized int getPeakRunningCount() {
+		return peakRunning;
+	}
+
+	/** Returns the number of requests completed so far */
+	public synchronized long getCompletedCount() {
+		return completed;
+	}
+
+	/** Returns the number of prefetches dropped so far, because too many requests were waiting */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/** Returns the histogram of time spent waiting in queue by requests of a priority, in milliseconds */
+	public RequestMetrics.Histogram getQueueWait(final Priority priority) {
+		return queueWaits.get(priority);
+	}
+
+	/** Resets peak counters, e.g. before measuring a new load scenario */
+	public synchronized void resetPeaks() {
+		peakQueued = queued;
+		peakRunning = running;
+	}
+
+	/** Adds a job at the end of the queue of its priority, and starts it if there are free slots */
+	void enqueue(final Job job) {
+		synchronized (this) {
+			queues.get(job.priority).addLast(job);
+			queued++;
+			peakQueued = Math.max(peakQueued, queued);
+		}
+		promote();
+		drop();
+	}
+
+	/** Starts queued jobs by priority and then in FIFO order, skipping those whose host is full */
+	private void promote() {
+		synchronized (this) {
+			for (final Priority priority : Priority.values()) {
+				final Iterator<Job> i = queues.get(priority).iterator();
+				while (running < maxRequests && i.hasNext()) {
+					final Job job = i.next();
+					final Integer hostCount = runningPerHost.get(job.host);
+					if (hostCount != null && hostCount >= maxRequestsPerHost) continue;
+					i.remove();
+					queued--;
+					runningPerHost.put(job.host, hostCount == null ? 1 : hostCount + 1);
+					running++;
+					peakRunning = Math.max(peakRunning, running);
+					queueWaits.get(job.priority).add((System.nanoTime() - job.queuedAt) / 1000000.0);
+					executor.execute(job);
+				}
+			}
+		}
+	}
+
+	/** Drops the newest prefetches that can be dropped while too many jobs are waiting */
+	private void drop() {
+		final ArrayDeque<Job> droppedJobs = new ArrayDeque<>();
+		synchronized (this) {
+			final Iterator<Job> i = queues.get(Priority.PREFETCH).descendingIterator();
+			while (queued > maxQueued && i.hasNext()) {
+				final Job job = i.next();
+				if (job.onDropped == null) continue;
+				i.remove();
+				queued--;
+				dropped++;
+				droppedJobs.add(job);
+			}
+		}
+		for (final Job job : droppedJobs) job.onDropped.run();
+	}
+
+	/** Releases the slots of a finished job and starts the next ones */
+	private void finished(final Job job) {
+		synchronized (this) {
+			final int hostCount = runningPerHost.get(job.host);
+			if (hostCount <= 1) runningPerHost.remove(job.host); else runningPerHost.put(job.host, hostCount - 1);
+			running--;
+			completed++;
+		}
+		promote();
+	}
+
+	/** Returns the host name of an URL, or an empty string if malformed */
+	private static String hostOf(final String url) {
+		try {
+			return new URL(url).getHost().toLowerCase();
+		} catch (Exception x) {
+			return "";
+		}
+	}
+
+	/** Thrown by requests dropped while waiting, because too many requests were waiting */
+	public static class DroppedException extends IOException {
+
+		public DroppedException() {
+			super("Dropped from a full request queue");
+		}
+
+	}
+
+	/** A task waiting or running in the dispatcher */
+	final class Job implements Runnable {
+
+		private final String host;
+		private final Runnable task;
+		private final Runnable onDropped;
+		private final long queuedAt = System.nanoTime();
+		private Priority priority; // Guarded by the dispatcher
+
+		private Job(final String host, final Priority priority, final Runnable task, final Runnable onDropped) {
+			this.host = host;
+			this.priority = priority;
+			this.task = task;
+			this.onDropped = onDropped;
+		}
+
+		/** Returns the dispatcher running this job */
+		RequestDispatcher getDispatcher() {
+			return RequestDispatcher.this;
+		}
+
+		@Override public void run() {
+			try {
+				task.run();
+			} finally {
+				finished(this);
+			}
+		}
+
+	}
+
+}
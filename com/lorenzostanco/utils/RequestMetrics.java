@@ -0,0 +1,295 @@
+package com.lorenzostanco.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timing breakdown of requests: queue wait, connect, time to first byte, body read and parse time,
+ * with bytes received and status code. Every {@link Request} send() and sync helper reports a
+ * {@link Sample} to the sink set with {@link #setSink(ISink)}, if any: when there's no sink, the
+ * cost is just a few timestamps per request. An {@link Aggregator} sink is provided, keeping
+ * histograms per host and per endpoint.
+ *
+ * <pre>
+ * final RequestMetrics.Aggregator metrics = new RequestMetrics.Aggregator();
+ * RequestMetrics.setSink(metrics);
+ * ...
+ * Log.i("WS", metrics.getHostStats("www.example.com").toString());
+ * </pre>
+ */
+@SuppressWarnings({ "unused", "Convert2Lambda", "Anonymous2MethodRef", "RedundantSuppression" })
+public final class RequestMetrics {
+
+	private static volatile ISink sink = null;
+
+	private RequestMetrics() { }
+
+	/** Sets the sink receiving a sample for every request, NULL to disable metrics */
+	public static void setSink(final ISink sink) {
+		RequestMetrics.sink = sink;
+	}
+
+	/** Returns the current sink, NULL if metrics are disabled */
+	public static ISink getSink() {
+		return sink;
+	}
+
+	/** Returns TRUE if there's a sink to report to */
+	static boolean isEnabled() {
+		return sink != null;
+	}
+
+	/** Reports a sample to the sink, if any */
+	static void report(final Sample sample) {
+		final ISink s = sink;
+		if (s != null) try {
+			s.onSample(sample);
+		} catch (RuntimeException ignored) { } // Metrics must never break requests
+	}
+
+	/** Receives request samples, on background threads */
+	public interface ISink {
+		void onSample(Sample sample);
+	}
+
+	/** Timings and outcome of a single request. Durations are in milliseconds, -1 when a phase didn't happen
+	 * (e.g. connect for responses read from cache). When the response is parsed while it's read (streaming
+	 * modes) parse time is included in body read time. */
+	public static final class Sample {
+
+		public final String url;
+		public final String method;
+		public final String host;
+
+		/** Method, host and path, without query */
+		public final String endpoint;
+
+		/** Response status code, -1 if no response */
+		public final int status;
+
+		public final boolean fromCache;
+		public final int retries;
+
+		/** Error class name, NULL on success */
+		public final String error;
+
+		public final double queueWait;
+		public final double connect;
+		public final double timeToFirstByte;
+		public final double bodyRead;
+		public final double parse;
+		public final double total;
+
+		/** Bytes received, after decompression, and on the wire */
+		public final long bytesReceived;
+		public final long bytesReceivedOnWire;
+
+		Sample(final String url, final String method, final String host, final String endpoint, final int status, final boolean fromCache, final int retries, final String error,
+		       final double queueWait, final double connect, final double timeToFirstByte, final double bodyRead, final double parse, final double total,
+		       final long bytesReceived, final long bytesReceivedOnWire) {
+			this.url = url;
+			this.method = method;
+			this.host = host;
+			this.endpoint = endpoint;
+			this.status = status;
+			this.fromCache = fromCache;
+			this.retries = retries;
+			this.error = error;
+			this.queueWait = queueWait;
+			this.connect = connect;
+			this.timeToFirstByte = timeToFirstByte;
+			this.bodyRead = bodyRead;
+			this.parse = parse;
+			this.total = total;
+			this.bytesReceived = bytesReceived;
+			this.bytesReceivedOnWire = bytesReceivedOnWire;
+		}
+
+		@Override public String toString() {
+			return String.format(Locale.US, "%s %d%s: queue %.1f, connect %.1f, ttfb %.1f, body %.1f, parse %.1f, total %.1f ms, %d bytes (%d on wire)%s",
+				endpoint, status, fromCache ? " (cache)" : "", queueWait, connect, timeToFirstByte, bodyRead, parse, total, bytesReceived, bytesReceivedOnWire,
+				error != null ? ", " + error : "");
+		}
+
+	}
+
+	/** Histogram of durations in milliseconds, with power-of-2 buckets: [0, 1), [1, 2), [2, 4), ... */
+	public static final class Histogram {
+
+		private final static int BUCKETS = 24;
+
+		private final long[] buckets = new long[BUCKETS];
+		private long count = 0;
+		private double sum = 0;
+		private double max = 0;
+
+		/** Adds a value, ignored if negative */
+		public synchronized void add(final double ms) {
+			if (ms < 0) return;
+			int bucket = 0;
+			while (bucket < BUCKETS - 1 && ms >= (1L << bucket)) bucket++;
+			buckets[bucket]++;
+			count++;
+			sum += ms;
+			max = Math.max(max, ms);
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		public synchronized double getMean() {
+			return count > 0 ? sum / count : 0;
+		}
+
+		public synchronized double getMax() {
+			return max;
+		}
+
+		/** Returns an upper bound of the given percentile, from 0 to 100 */
+		public synchronized double getPercentile(final double percentile) {
+			if (count == 0) return 0;
+			final long rank = (long)Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= rank) return Math.min(i == 0 ? 1 : (1L << i), max);
+			}
+			return max;
+		}
+
+		@Override public synchronized String toString() {
+			return String.format(Locale.US, "n %d, mean %.1f, p50 %.0f, p90 %.0f, p99 %.0f, max %.1f", count, getMean(), getPercentile(50), getPercentile(90), getPercentile(99), max);
+		}
+
+	}
+
+	/** Aggregated statistics of a group of requests */
+	public static final class Stats {
+
+		public final Histogram queueWait = new Histogram();
+		public final Histogram connect = new Histogram();
+		public final Histogram timeToFirstByte = new Histogram();
+		public final Histogram bodyRead = new Histogram();
+		public final Histogram parse = new Histogram();
+		public final Histogram total = new Histogram();
+
+		private long requests = 0;
+		private long errors = 0;
+		private long cacheHits = 0;
+		private long bytesReceived = 0;
+		private long bytesReceivedOnWire = 0;
+		private final Map<Integer, Long> statuses = new HashMap<>();
+
+		private void add(final Sample sample) {
+			queueWait.add(sample.queueWait);
+			connect.add(sample.connect);
+			timeToFirstByte.add(sample.timeToFirstByte);
+			bodyRead.add(sample.bodyRead);
+			parse.add(sample.parse);
+			total.add(sample.total);
+			synchronized (this) {
+				requests++;
+				if (sample.error != null) errors++;
+				if (sample.fromCache) cacheHits++;
+				bytesReceived += sample.bytesReceived;
+				bytesReceivedOnWire += sample.bytesReceivedOnWire;
+				final Long n = statuses.get(sample.status);
+				statuses.put(sample.status, n == null ? 1 : n + 1);
+			}
+		}
+
+		public synchronized long getRequests() {
+			return requests;
+		}
+
+		public synchronized long getErrors() {
+			return errors;
+		}
+
+		public synchronized long getCacheHits() {
+			return cacheHits;
+		}
+
+		public synchronized long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		public synchronized long getBytesReceivedOnWire() {
+			return bytesReceivedOnWire;
+		}
+
+		/** Returns the number of responses per status code, -1 for requests without response */
+		public synchronized Map<Integer, Long> getStatuses() {
+			return new HashMap<>(statuses);
+		}
+
+		@Override public String toString() {
+			return String.format(Locale.US, "%d requests, %d errors, %d from cache, %d bytes (%d on wire), statuses %s\n queue: %s\n connect: %s\n ttfb: %s\n body: %s\n parse: %s\n total: %s",
+				getRequests(), getErrors(), getCacheHits(), getBytesReceived(), getBytesReceivedOnWire(), getStatuses(), queueWait, connect, timeToFirstByte, bodyRead, parse, total);
+		}
+
+	}
+
+	/** A sink that aggregates samples per host and per endpoint */
+	public static class Aggregator implements ISink {
+
+		// Guarded by themselves
+		private final Map<String, Stats> hosts = new HashMap<>();
+		private final Map<String, Stats> endpoints = new HashMap<>();
+
+		@Override public void onSample(final Sample sample) {
+			statsOf(hosts, sample.host).add(sample);
+			statsOf(endpoints, sample.endpoint).add(sample);
+		}
+
+		/** Returns statistics of a host, NULL if no requests so far */
+		public Stats getHostStats(final String host) {
+			synchronized (hosts) {
+				return hosts.get(host.toLowerCase(Locale.US));
+			}
+		}
+
+		/** Returns statistics of an endpoint (e.g. "GET www.example.com/ws/"), NULL if no requests so far */
+		public Stats getEndpointStats(final String endpoint) {
+			synchronized (endpoints) {
+				return endpoints.get(endpoint);
+			}
+		}
+
+		public List<String> getHosts() {
+			synchronized (hosts) {
+				return new ArrayList<>(hosts.keySet());
+			}
+		}
+
+		public List<String> getEndpoints() {
+			synchronized (endpoints) {
+				return new ArrayList<>(endpoints.keySet());
+			}
+		}
+
+		/** Forgets everything */
+		public void reset() {
+			synchronized (hosts) {
+				hosts.clear();
+			}
+			synchronized (endpoints) {
+				endpoints.clear();
+			}
+		}
+
+		private static Stats statsOf(final Map<String, Stats> map, final String key) {
+			synchronized (map) {
+				Stats stats = map.get(key);
+				if (stats == null) map.put(key, stats = new Stats());
+				return stats;
+			}
+		}
+
+	}
+
+}
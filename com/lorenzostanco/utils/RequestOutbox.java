@@ -0,0 +1,601 @@
+package com.lorenzostanco.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A durable outbox for mutating requests (POST, PUT, DELETE...) that must reach the server even if
+ * the network is down when they're made. Requests are appended to a log on disk, flushed to storage
+ * in batches, and sent in order with bounded concurrency, now or when connectivity comes back.
+ * Each request has an idempotency key, sent as a header so the server can ignore duplicates (a request
+ * may be sent again if the app dies before its completion is logged), and used to ignore requests
+ * enqueued twice (the last MAX_COMPLETED_KEYS completed keys are remembered, also across compactions
+ * and restarts). The log is compacted when it's mostly made of completed requests.
+ * Requests go through the sync helpers, so the default cache, retry policy and rate limiter apply.
+ * Listeners are notified on the main thread when a request is sent, or fails for good (4xx responses).
+ *
+ * <pre>
+ * outbox = new RequestOutbox(new File(getFilesDir(), "outbox"));
+ * outbox.registerConnectivityReceiver(this);
+ * outbox.enqueue(ws.setRequestMethodAndBody("POST", json), "http://www.example.com/ws/save");
+ * </pre>
+ */
+@SuppressWarnings({ "unused", "Convert2Lambda", "Anonymous2MethodRef", "RedundantSuppression" })
+public final class RequestOutbox {
+
+	public final static String DEFAULT_IDEMPOTENCY_HEADER = "Idempotency-Key";
+	public final static int DEFAULT_MAX_CONCURRENT = 2;
+	public final static long DEFAULT_RETRY_DELAY = 30000;
+	public final static long MAX_RETRY_DELAY = 10 * 60000;
+	public final static int COMPACT_THRESHOLD = 64;
+	public final static int MAX_COMPLETED_KEYS = 1024;
+
+	private final static byte RECORD_ADD = 'A';
+	private final static byte RECORD_DONE = 'D';
+	private final static byte RECORD_COMPLETED = 'C'; // Key of a completed request, kept by compaction
+
+	private final File directory;
+	private final File logFile;
+	private final List<IOutboxListener> listeners = new CopyOnWriteArrayList<>();
+
+	// Options
+	private volatile String idempotencyHeader = DEFAULT_IDEMPOTENCY_HEADER;
+	private volatile int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+	private volatile int timeout = Request.DEFAULT_TIMEOUT;
+
+	// Log writer, replay scheduler and senders: all the state below is owned by the writer thread
+	private final ScheduledExecutorService writer;
+	private final ExecutorService senders;
+	private FileChannel log = null;
+	private final LinkedHashMap<String, Entry> pending = new LinkedHashMap<>();
+	private final Set<String> inFlight = new HashSet<>();
+	private final Set<String> completed = new LinkedHashSet<>(); // Oldest first, bounded to MAX_COMPLETED_KEYS
+	private final List<Entry> unsynced = new ArrayList<>();
+	private boolean syncScheduled = false;
+	private int doneRecords = 0;
+	private boolean paused = false;
+	private long retryDelay = DEFAULT_RETRY_DELAY;
+	private boolean retryScheduled = false;
+
+	// Snapshot for other threads
+	private volatile int pendingCount = 0;
+	private volatile boolean closed = false;
+
+	private BroadcastReceiver connectivityReceiver = null;
+	private Context receiverContext = null;
+
+	/** Initializes the outbox, loading pending requests of previous runs and sending them
+	 * @param directory Directory for the log, created if needed */
+	public RequestOutbox(final File directory) {
+		this.directory = directory;
+		this.logFile = new File(directory, "outbox.log");
+		this.writer = Executors.newSingleThreadScheduledExecutor(newThreadFactory("RequestOutbox writer"));
+		this.senders = Executors.newCachedThreadPool(newThreadFactory("RequestOutbox sender"));
+		this.writer.execute(new Runnable() {
+			@Override public void run() {
+				load();
+				replayNow();
+			}
+		});
+	}
+
+	/** Sets the header carrying the idempotency key, default is DEFAULT_IDEMPOTENCY_HEADER
+	 * @return This object, for chaining */
+	public RequestOutbox setIdempotencyHeader(final String idempotencyHeader) {
+		this.idempotencyHeader = idempotencyHeader;
+		return this;
+	}
+
+	/** Sets the max number of requests sent at the same time, default is DEFAULT_MAX_CONCURRENT.
+	 * Requests are always started in order, set 1 to also complete them in order.
+	 * @return This object, for chaining */
+	public RequestOutbox setMaxConcurrent(final int maxConcurrent) {
+		if (maxConcurrent < 1) throw new IllegalArgumentException("Max concurrent must be at least 1");
+		this.maxConcurrent = maxConcurrent;
+		return this;
+	}
+
+	/** Sets the timeout of each request
+	 * @param timeout Timeout in milliseconds
+	 * @return This object, for chaining */
+	public RequestOutbox setTimeout(final int timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/** Adds a listener
+	 * @return This object, for chaining */
+	public RequestOutbox addListener(final IOutboxListener l) {
+		listeners.add(l);
+		return this;
+	}
+
+	/** Removes a listener
+	 * @return This object, for chaining */
+	public RequestOutbox removeListener(final IOutboxListener l) {
+		listeners.remove(l);
+		return this;
+	}
+
+	/** Returns the number of requests not sent yet */
+	public int getPendingCount() {
+		return pendingCount;
+	}
+
+	/** Enqueues a request with the method, body and headers of a client. The client itself is not sent.
+	 * @return The idempotency key */
+	public String enqueue(final Request<?> request, final String url) {
+		return enqueue(url, request.requestMethod, request.requestBody, request.requestHeaders, null);
+	}
+
+	/** Enqueues a request, with a new idempotency key
+	 * @return The idempotency key */
+	public String enqueue(final String url, final String requestMethod, final Object requestBody, final Map<String, String> requestHeaders) {
+		return enqueue(url, requestMethod, requestBody, requestHeaders, null);
+	}
+
+	/** Enqueues a request. It's ignored if a request with the same idempotency key is pending or was already sent.
+	 * @param requestBody Any object, using <code>.toString()</code>, can be NULL. Streamed bodies are not supported.
+	 * @param requestHeaders Can be NULL
+	 * @param idempotencyKey NULL for a new random key
+	 * @return The idempotency key
+	 * @throws IllegalStateException If the outbox has been closed */
+	public String enqueue(final String url, final String requestMethod, final Object requestBody, final Map<String, String> requestHeaders, final String idempotencyKey) {
+		if (closed) throw new IllegalStateException("Outbox closed");
+		if (RequestBody.wrap(requestBody) != null) throw new IllegalArgumentException("Streamed request bodies can't be enqueued");
+		final Map<String, String> headers = requestHeaders != null ? new HashMap<>(requestHeaders) : new HashMap<String, String>();
+		if ((requestBody instanceof JSONObject || requestBody instanceof JSONArray) && !headers.containsKey("Content-Type")) headers.put("Content-Type", "application/json"); // Type is lost with toString()
+		final Entry entry = new Entry(idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString(), url, requestMethod, headers,
+			requestBody != null ? requestBody.toString() : null);
+		if (!post(new Runnable() {
+			@Override public void run() {
+				append(entry);
+			}
+		})) throw new IllegalStateException("Outbox closed");
+		return entry.key;
+	}
+
+	/** Sends pending requests now, e.g. when connectivity comes back. Does nothing if the outbox has been closed. */
+	public void replay() {
+		post(new Runnable() {
+			@Override public void run() {
+				paused = false;
+				retryDelay = DEFAULT_RETRY_DELAY;
+				replayNow();
+			}
+		});
+	}
+
+	/** Replays pending requests whenever the device gets connected, until unregistered or closed */
+	public synchronized void registerConnectivityReceiver(final Context context) {
+		if (closed || connectivityReceiver != null) return;
+		final Context appContext = context.getApplicationContext();
+		connectivityReceiver = new BroadcastReceiver() {
+			@Override public void onReceive(final Context c, final Intent intent) {
+				final ConnectivityManager manager = (ConnectivityManager)appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+				final NetworkInfo network = manager != null ? manager.getActiveNetworkInfo() : null;
+				if (network != null && network.isConnected()) replay();
+			}
+		};
+		appContext.registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		receiverContext = appContext;
+	}
+
+	public synchronized void unregisterConnectivityReceiver(final Context context) {
+		if (connectivityReceiver == null) return;
+		receiverContext.unregisterReceiver(connectivityReceiver);
+		connectivityReceiver = null;
+		receiverContext = null;
+	}
+
+	/** Stops sending and closes the log. Pending requests are sent by the next outbox on the same directory.
+	 * The outbox can't be used anymore: enqueue() throws, replay() does nothing. */
+	public void close() {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			if (connectivityReceiver != null) unregisterConnectivityReceiver(receiverContext);
+		}
+		senders.shutdownNow();
+		post(new Runnable() {
+			@Override public void run() {
+				sync();
+				closeLog();
+			}
+		});
+		writer.shutdown();
+	}
+
+	/** Runs a task on the writer thread
+	 * @return False if the writer has been shut down */
+	private boolean post(final Runnable task) {
+		try {
+			writer.execute(task);
+			return true;
+		} catch (RejectedExecutionException x) {
+			return false;
+		}
+	}
+
+	/** Reads the log, truncating it after the last complete record */
+	private void load() {
+		if (!directory.isDirectory() && !directory.mkdirs()) return;
+		long valid = 0;
+		if (logFile.isFile()) try {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+			try {
+				while (true) {
+					final byte[] record = readRecord(in);
+					if (record == null) break;
+					final DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+					final byte type = data.readByte();
+					final String key = data.readUTF();
+					if (type == RECORD_ADD) {
+						final Entry entry = readEntry(key, data);
+						if (!completed.contains(key) && !pending.containsKey(key)) pending.put(key, entry);
+					} else if (type == RECORD_DONE) {
+						pending.remove(key);
+						addCompleted(key);
+						doneRecords++;
+					} else if (type == RECORD_COMPLETED) {
+						addCompleted(key);
+					}
+					valid += 8 + record.length;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ignored) { } // Keep what was read so far
+		try {
+			log = new FileOutputStream(logFile, true).getChannel();
+			if (log.size() > valid) log.truncate(valid); // Torn write at the end
+		} catch (IOException x) {
+			closeLog();
+		}
+		pendingCount = pending.size();
+	}
+
+	/** Appends a request to the log, it becomes pending after the next sync */
+	private void append(final Entry entry) {
+		if (pending.containsKey(entry.key) || completed.contains(entry.key) || inUnsynced(entry.key)) return;
+		if (!write(RECORD_ADD, entry)) return;
+		unsynced.add(entry);
+		if (syncScheduled) return;
+		syncScheduled = post(new Runnable() {
+			@Override public void run() {
+				sync();
+				replayNow();
+			}
+		});
+	}
+
+	/** Flushes all the records appended so far to storage with a single fsync, making them pending */
+	private void sync() {
+		syncScheduled = false;
+		if (unsynced.isEmpty() || log == null) return;
+		try {
+			log.force(false);
+		} catch (IOException x) {
+			notifyFailed(unsynced, "io_error", "Can't save request: " + x.getMessage());
+			unsynced.clear();
+			return;
+		}
+		for (final Entry entry : unsynced) pending.put(entry.key, entry);
+		unsynced.clear();
+		pendingCount = pending.size();
+	}
+
+	/** Starts pending requests in order, up to the max concurrent */
+	private void replayNow() {
+		if (paused || closed) return;
+		final Iterator<Entry> i = pending.values().iterator();
+		while (inFlight.size() < maxConcurrent && i.hasNext()) {
+			final Entry entry = i.next();
+			if (inFlight.contains(entry.key)) continue;
+			try {
+				senders.execute(new Runnable() {
+					@Override public void run() {
+						send(entry);
+					}
+				});
+			} catch (RejectedExecutionException x) {
+				return; // Closed meanwhile
+			}
+			inFlight.add(entry.key);
+		}
+	}
+
+	/** Sends a request, on a sender thread */
+	private void send(final Entry entry) {
+		final Map<String, String> headers = new HashMap<>(entry.headers);
+		headers.put(idempotencyHeader, entry.key);
+		String response = null;
+		IOException error = null;
+		try {
+			response = Request.requestStringSync(entry.url, headers, entry.method, entry.body, timeout);
+		} catch (IOException e) {
+			error = e;
+		}
+		final String r = response;
+		final IOException e = error;
+		post(new Runnable() {
+			@Override public void run() {
+				sent(entry, r, e);
+			}
+		}); // If closed meanwhile, the request is still pending in the log and will be sent again with the same key
+	}
+
+	/** Records the outcome of a request */
+	private void sent(final Entry entry, final String response, final IOException e) {
+		inFlight.remove(entry.key);
+		if (closed && log == null) return; // Log already closed: still pending, sent again by the next outbox
+
+		// Transient error: keep it, and pause until connectivity is back or a while has passed
+		if (e != null && !isPermanent(e)) {
+			paused = true;
+			if (!retryScheduled && !closed) try {
+				writer.schedule(new Runnable() {
+					@Override public void run() {
+						retryScheduled = false;
+						paused = false;
+						replayNow();
+					}
+				}, retryDelay, TimeUnit.MILLISECONDS);
+				retryScheduled = true;
+				retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+			} catch (RejectedExecutionException ignored) { } // Closed meanwhile
+			return;
+		}
+
+		// Done, successfully or for good: no need to force, at worst it's sent again with the same key
+		write(RECORD_DONE, entry);
+		pending.remove(entry.key);
+		addCompleted(entry.key);
+		doneRecords++;
+		pendingCount = pending.size();
+		retryDelay = DEFAULT_RETRY_DELAY;
+		if (e == null) {
+			for (final IOutboxListener l : listeners) Request.postToMainThread(new Runnable() {
+				@Override public void run() {
+					l.onSent(entry.key, entry.url, response);
+				}
+			});
+		} else {
+			final List<Entry> failed = new ArrayList<>(1);
+			failed.add(entry);
+			notifyFailed(failed, Request.errorCodeOf(e), e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+
+		// Keep the log small, then go on
+		if (doneRecords >= COMPACT_THRESHOLD && doneRecords > pending.size() && unsynced.isEmpty()) compact();
+		replayNow();
+	}
+
+	/** Rewrites the log with only the pending requests, and the keys of the last completed ones to keep ignoring them */
+	private void compact() {
+		final File temp = new File(directory, "outbox.log.tmp");
+		try {
+			final FileOutputStream out = new FileOutputStream(temp);
+			try {
+				final FileChannel channel = out.getChannel();
+				for (final String key : completed) writeFully(channel, encode(RECORD_COMPLETED, new Entry(key, null, null, null, null)));
+				for (final Entry entry : pending.values()) writeFully(channel, encode(RECORD_ADD, entry));
+				channel.force(false);
+			} finally {
+				out.close();
+			}
+			closeLog();
+			if (!temp.renameTo(logFile)) throw new IOException("Can't rename " + temp);
+			doneRecords = 0;
+		} catch (IOException x) {
+			//noinspection ResultOfMethodCallIgnored
+			temp.delete();
+		}
+		try {
+			if (log == null) log = new FileOutputStream(logFile, true).getChannel();
+		} catch (IOException x) {
+			log = null;
+		}
+	}
+
+	/** Writes a record at the end of the log, without forcing it to storage */
+	private boolean write(final byte type, final Entry entry) {
+		if (log == null) {
+			notifyFailed(Collections.singletonList(entry), "io_error", "Can't open " + logFile);
+			return false;
+		}
+		try {
+			writeFully(log, encode(type, entry));
+			return true;
+		} catch (IOException x) {
+			notifyFailed(Collections.singletonList(entry), "io_error", "Can't save request: " + x.getMessage());
+			return false;
+		}
+	}
+
+	private static void writeFully(final FileChannel channel, final byte[] bytes) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+
+	/** Remembers the key of a completed request, forgetting the oldest ones beyond MAX_COMPLETED_KEYS */
+	private void addCompleted(final String key) {
+		completed.remove(key);
+		completed.add(key);
+		if (completed.size() > MAX_COMPLETED_KEYS) {
+			final Iterator<String> i = completed.iterator();
+			i.next();
+			i.remove();
+		}
+	}
+
+	/** Encodes a record: length, CRC32 of the payload, payload */
+	private static byte[] encode(final byte type, final Entry entry) throws IOException {
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+		final DataOutputStream data = new DataOutputStream(payload);
+		data.writeByte(type);
+		data.writeUTF(entry.key);
+		if (type == RECORD_ADD) {
+			data.writeUTF(entry.url);
+			data.writeUTF(entry.method);
+			data.writeInt(entry.headers.size());
+			for (final Map.Entry<String, String> header : entry.headers.entrySet()) {
+				data.writeUTF(header.getKey());
+				data.writeUTF(header.getValue());
+			}
+			final byte[] body = entry.body != null ? entry.body.getBytes("UTF-8") : null;
+			data.writeInt(body != null ? body.length : -1);
+			if (body != null) data.write(body);
+		}
+		data.close();
+		final byte[] bytes = payload.toByteArray();
+		final CRC32 crc = new CRC32();
+		crc.update(bytes);
+		final ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+		final DataOutputStream out = new DataOutputStream(record);
+		out.writeInt(bytes.length);
+		out.writeInt((int)crc.getValue());
+		out.write(bytes);
+		out.close();
+		return record.toByteArray();
+	}
+
+	/** Reads the payload of a record, NULL at the end of the log or at a torn or corrupted record */
+	private static byte[] readRecord(final DataInputStream in) throws IOException {
+		try {
+			final int length = in.readInt();
+			final int checksum = in.readInt();
+			if (length < 0 || length > 64 * 1024 * 1024) return null;
+			final byte[] payload = new byte[length];
+			in.readFully(payload);
+			final CRC32 crc = new CRC32();
+			crc.update(payload);
+			return (int)crc.getValue() == checksum ? payload : null;
+		} catch (EOFException x) {
+			return null;
+		}
+	}
+
+	private static Entry readEntry(final String key, final DataInputStream data) throws IOException {
+		final String url = data.readUTF();
+		final String method = data.readUTF();
+		final int headerCount = data.readInt();
+		final Map<String, String> headers = new HashMap<>();
+		for (int i = 0; i < headerCount; i++) headers.put(data.readUTF(), data.readUTF());
+		final int bodyLength = data.readInt();
+		String body = null;
+		if (bodyLength >= 0) {
+			final byte[] bytes = new byte[bodyLength];
+			data.readFully(bytes);
+			body = new String(bytes, "UTF-8");
+		}
+		return new Entry(key, url, method, headers, body);
+	}
+
+	/** Returns true for errors that won't go away by sending again: client errors, except timeouts and rate limits */
+	private static boolean isPermanent(final IOException e) {
+		if (!(e instanceof Request.StatusException)) return false;
+		final int status = ((Request.StatusException)e).getStatus();
+		return status >= 400 && status < 500 && status != 408 && status != 429;
+	}
+
+	private boolean inUnsynced(final String key) {
+		for (final Entry entry : unsynced) if (entry.key.equals(key)) return true;
+		return false;
+	}
+
+	private void notifyFailed(final List<Entry> entries, final String code, final String message) {
+		for (final Entry entry : new ArrayList<>(entries)) for (final IOutboxListener l : listeners) Request.postToMainThread(new Runnable() {
+			@Override public void run() {
+				l.onFailed(entry.key, entry.url, code, message);
+			}
+		});
+	}
+
+	private void closeLog() {
+		if (log != null) try {
+			log.close();
+		} catch (IOException ignored) { }
+		log = null;
+	}
+
+	private static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			@Override public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/** A request in the outbox */
+	private static class Entry {
+
+		private final String key;
+		private final String url;
+		private final String method;
+		private final Map<String, String> headers;
+		private final String body;
+
+		private Entry(final String key, final String url, final String method, final Map<String, String> headers, final String body) {
+			this.key = key;
+			this.url = url;
+			this.method = method;
+			this.headers = headers;
+			this.body = body;
+		}
+
+	}
+
+	/** Outbox listener interface, called on the main thread */
+	public interface IOutboxListener {
+
+		/** When a request has been sent successfully */
+		void onSent(String idempotencyKey, String url, String response);
+
+		/** When a request failed for good and won't be sent again, e.g. with a 4xx response */
+		void onFailed(String idempotencyKey, String url, String code, String message);
+
+	}
+
+}
@@ -0,0 +1,209 @@
+package com.lorenzostanco.utils;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pre-warms connections to hosts that are going to be requested soon: resolves their names and opens
+ * a connection (TCP and TLS handshakes) with a HEAD request, leaving the socket in the keep-alive pool
+ * of {@link HttpURLConnection}, where the next request to the same host picks it up. Runs in background
+ * through the default dispatcher, as PREFETCH. Statistics per host estimate the handshake time saved:
+ * a pre-warm leaves a single socket, so the first later connection to the host that opens much faster
+ * than the pre-warm handshake did is counted as reusing it, at most once per pre-warm.
+ *
+ * <pre>
+ * RequestPrewarmer.setKeepAlive(true, 8, 5 * 60000); // Before any request, e.g. in Application.onCreate()
+ * RequestPrewarmer.prewarm("https://api.example.com/", "https://cdn.example.com/");
+ * ...
+ * Log.i("WS", RequestPrewarmer.getStats("api.example.com").toString());
+ * </pre>
+ */
+@SuppressWarnings({ "unused", "Convert2Lambda", "Anonymous2MethodRef", "RedundantSuppression" })
+public final class RequestPrewarmer {
+
+	public final static int DEFAULT_TIMEOUT = 10000;
+
+	// Statistics per host, only for pre-warmed hosts
+	private final static ConcurrentMap<String, HostStats> stats = new ConcurrentHashMap<>();
+
+	private RequestPrewarmer() { }
+
+	/** Configures the keep-alive connection pool of HttpURLConnection, with system properties read when the pool is
+	 * created: call it before the first request of the process to be effective.
+	 * @param enabled Enables or disables keep-alive, default is enabled
+	 * @param maxConnections Max idle connections kept, per host on older platforms, default is 5
+	 * @param keepAliveDuration Milliseconds an idle connection is kept, default is 5 minutes (on Android) */
+	public static void setKeepAlive(final boolean enabled, final int maxConnections, final long keepAliveDuration) {
+		System.setProperty("http.keepAlive", Boolean.toString(enabled));
+		System.setProperty("http.maxConnections", Integer.toString(maxConnections));
+		System.setProperty("http.keepAliveDuration", Long.toString(keepAliveDuration));
+	}
+
+	/** Pre-warms connections to the hosts of some URLs, in background. Only one connection per host is opened. */
+	public static void prewarm(final String... urls) {
+		final List<String> origins = new ArrayList<>();
+		for (final String url : urls) {
+			final String origin = originOf(url);
+			if (origin != null && !origins.contains(origin)) origins.add(origin);
+		}
+		final RequestDispatcher dispatcher = RequestDispatcher.getDefault();
+		for (final String origin : origins) dispatcher.submit(origin, RequestDispatcher.Priority.PREFETCH, new Runnable() {
+			@Override public void run() {
+				prewarmSync(origin);
+			}
+		}, new Runnable() {
+			@Override public void run() { } // Not needed anymore, no harm
+		});
+	}
+
+	/** Pre-warms the connection to the host of an URL, in a sync way
+	 * @return TRUE if the connection has been opened */
+	public static boolean prewarmSync(final String url) {
+		HttpURLConnection connection = null;
+		try {
+			final URL u = new URL(url);
+			final String host = u.getHost().toLowerCase(Locale.US);
+			final RequestRateLimiter limiter = RequestRateLimiter.getDefault();
+			if (limiter != null) limiter.acquire(url);
+
+			// Name resolution, cached by the platform
+			final long startAt = System.nanoTime();
+			InetAddress.getAllByName(host);
+			final long resolvedAt = System.nanoTime();
+
+			// Handshakes, then the response must be read to the end to put the socket back in the pool
+			connection = (HttpURLConnection)u.openConnection();
+			connection.setConnectTimeout(DEFAULT_TIMEOUT);
+			connection.setReadTimeout(DEFAULT_TIMEOUT);
+			connection.setRequestMethod("HEAD");
+			connection.connect();
+			final long connectedAt = System.nanoTime();
+			final InputStream in = connection.getResponseCode() >= 400 ? connection.getErrorStream() : connection.getInputStream();
+			if (in != null) {
+				while (in.read() >= 0) { } // HEAD responses have no body, but be safe
+				in.close();
+			}
+
+			statsOf(host).prewarmed((resolvedAt - startAt) / 1000000.0, (connectedAt - resolvedAt) / 1000000.0);
+			return true;
+
+		} catch (Exception x) {
+			if (connection != null) connection.disconnect();
+			return false;
+		}
+	}
+
+	/** Returns statistics of a pre-warmed host, NULL if never pre-warmed */
+	public static HostStats getStats(final String host) {
+		return stats.get(host.toLowerCase(Locale.US));
+	}
+
+	/** Returns the pre-warmed hosts */
+	public static List<String> getHosts() {
+		return new ArrayList<>(stats.keySet());
+	}
+
+	/** Forgets statistics */
+	public static void resetStats() {
+		stats.clear();
+	}
+
+	/** Records the connection time of a request, to count reused pre-warmed connections */
+	static void onConnected(final String host, final double connectTime) {
+		if (stats.isEmpty()) return;
+		final HostStats s = stats.get(host);
+		if (s != null) s.connected(connectTime);
+	}
+
+	private static HostStats statsOf(final String host) {
+		HostStats s = stats.get(host);
+		if (s == null) {
+			final HostStats created = new HostStats();
+			s = stats.putIfAbsent(host, created);
+			if (s == null) s = created;
+		}
+		return s;
+	}
+
+	/** Returns scheme, host and port of an URL, NULL if malformed */
+	private static String originOf(final String url) {
+		try {
+			final URL u = new URL(url);
+			return u.getProtocol() + "://" + u.getHost() + (u.getPort() >= 0 ? ":" + u.getPort() : "") + "/";
+		} catch (Exception x) {
+			return null;
+		}
+	}
+
+	/** Pre-warming statistics of a host. Times are in milliseconds. */
+	public static final class HostStats {
+
+		private int prewarms = 0;
+		private int unclaimed = 0;
+		private double dnsTime = 0;
+		private double handshakeTime = 0;
+		private long connections = 0;
+		private long reusedConnections = 0;
+		private double savedTime = 0;
+
+		private synchronized void prewarmed(final double dnsTime, final double handshakeTime) {
+			this.prewarms++;
+			this.unclaimed++;
+			this.dnsTime = dnsTime;
+			this.handshakeTime = handshakeTime;
+		}
+
+		/** A connection is considered reusing a pre-warmed socket not claimed yet, if it took less than half the handshake time */
+		private synchronized void connected(final double connectTime) {
+			connections++;
+			if (unclaimed == 0 || connectTime >= handshakeTime / 2) return;
+			unclaimed--;
+			reusedConnections++;
+			savedTime += handshakeTime - connectTime;
+		}
+
+		/** Returns the number of times the host was pre-warmed */
+		public synchronized int getPrewarms() {
+			return prewarms;
+		}
+
+		/** Returns the name resolution time of the last pre-warm */
+		public synchronized double getDnsTime() {
+			return dnsTime;
+		}
+
+		/** Returns the connection time (TCP and TLS handshakes) of the last pre-warm */
+		public synchronized double getHandshakeTime() {
+			return handshakeTime;
+		}
+
+		/** Returns the number of requests connected to the host after pre-warming */
+		public synchronized long getConnections() {
+			return connections;
+		}
+
+		/** Returns the number of those connections that reused a pre-warmed socket, at most one per pre-warm */
+		public synchronized long getReusedConnections() {
+			return reusedConnections;
+		}
+
+		/** Returns the estimated handshake time saved by reused connections */
+		public synchronized double getSavedTime() {
+			return savedTime;
+		}
+
+		@Override public synchronized String toString() {
+			return String.format(Locale.US, "%d prewarms, dns %.1f, handshake %.1f ms, %d of %d connections reused, %.1f ms saved",
+				prewarms, dnsTime, handshakeTime, reusedConnections, connections, savedTime);
+		}
+
+	}
+
+}
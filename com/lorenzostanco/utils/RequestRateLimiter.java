@@ -0,0 +1,279 @@
+package com.lorenzostanco.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the request rate per host or endpoint with token buckets, to stay within server quotas
+ * instead of bursting into 429 responses. Requests over the limit wait for a token, or fail with
+ * {@link RateLimitException} if they would wait longer than the max delay. A Retry-After header
+ * in a 429 or 503 response holds back all the requests to that host until then.
+ * Set it on a single {@link Request} with setRateLimiter(), or on all of them (and on the sync
+ * helpers too) with {@link #setDefault(RequestRateLimiter)}. Buckets are independent: there's no
+ * global lock on the request path.
+ *
+ * <pre>
+ * RequestRateLimiter.setDefault(new RequestRateLimiter()
+ * 	.setLimit("api.example.com", 10, 20)
+ * 	.setLimit("api.example.com/search", 1, 2));
+ * </pre>
+ */
+@SuppressWarnings({ "unused", "RedundantSuppression" })
+public final class RequestRateLimiter {
+
+	public final static long DEFAULT_MAX_DELAY = 10000;
+
+	private static volatile RequestRateLimiter defaultLimiter = null;
+
+	// Limits, read without locking
+	private final List<Rule> rules = new CopyOnWriteArrayList<>();
+	private volatile long maxDelay = DEFAULT_MAX_DELAY;
+	private volatile boolean honorRetryAfter = true;
+
+	// Buckets per rule and host, and hosts held back by Retry-After until a nanoTime()
+	private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, AtomicLong> blockedUntil = new ConcurrentHashMap<>();
+
+	// Statistics
+	private final AtomicLong delayed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** Returns the limiter used by all requests that don't set their own, and by sync helpers, NULL if none */
+	public static RequestRateLimiter getDefault() {
+		return defaultLimiter;
+	}
+
+	/** Sets the limiter used by all requests that don't set their own, and by sync helpers, NULL for no limits */
+	public static void setDefault(final RequestRateLimiter limiter) {
+		defaultLimiter = limiter;
+	}
+
+	/** Adds a limit for a host, or for the URLs of a host starting with a path. Every matching limit applies,
+	 * each host has its own buckets.
+	 * @param pattern A host, e.g. "api.example.com", or "*.example.com" for all its subdomains, optionally followed by a path prefix, e.g. "api.example.com/search"
+	 * @param requestsPerSecond Sustained rate
+	 * @param burst Max requests sent at once after being idle, at least 1
+	 * @return This object, for chaining */
+	public RequestRateLimiter setLimit(final String pattern, final double requestsPerSecond, final int burst) {
+		if (requestsPerSecond <= 0 || burst < 1) throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+		final Rule rule = new Rule(pattern, requestsPerSecond, burst);
+		for (final Rule r : rules) if (r.pattern.equals(rule.pattern)) rules.remove(r);
+		rules.add(rule);
+		clearBuckets(rule.pattern);
+		return this;
+	}
+
+	/** Removes the limit of a pattern
+	 * @return This object, for chaining */
+	public RequestRateLimiter removeLimit(final String pattern) {
+		final String p = pattern.toLowerCase(Locale.US);
+		for (final Rule r : rules) if (r.pattern.equals(p)) rules.remove(r);
+		clearBuckets(p);
+		return this;
+	}
+
+	/** Sets the max time a request waits for a token before failing with RateLimitException, default is DEFAULT_MAX_DELAY
+	 * @param maxDelay Delay in milliseconds, 0 to never wait
+	 * @return This object, for chaining */
+	public RequestRateLimiter setMaxDelay(final long maxDelay) {
+		this.maxDelay = Math.max(0, maxDelay);
+		return this;
+	}
+
+	/** Enables or disables holding back requests to a host after a 429 or 503 response with Retry-After, default is enabled
+	 * @return This object, for chaining */
+	public RequestRateLimiter setHonorRetryAfter(final boolean honorRetryAfter) {
+		this.honorRetryAfter = honorRetryAfter;
+		return this;
+	}
+
+	/** Returns the number of requests that waited for a token */
+	public long getDelayedCount() {
+		return delayed.get();
+	}
+
+	/** Returns the number of requests rejected because they would wait too long */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/** Forgets all tokens used and Retry-After delays, e.g. when the account changes */
+	public void reset() {
+		buckets.clear();
+		blockedUntil.clear();
+	}
+
+	/** Takes a token from every bucket matching the URL, waiting if needed
+	 * @throws RateLimitException If the request would wait more than the max delay
+	 * @throws InterruptedIOException If interrupted while waiting */
+	void acquire(final String url) throws IOException {
+		final String host, path;
+		try {
+			final URL u = new URL(url);
+			host = u.getHost().toLowerCase(Locale.US);
+			path = u.getPath();
+		} catch (Exception x) {
+			return; // Malformed, let the connection fail
+		}
+
+		// Reserve a token from every matching bucket, giving them back if rejected
+		final long now = System.nanoTime();
+		final long max = maxDelay * 1000000L;
+		final AtomicLong blocked = blockedUntil.get(host);
+		long wait = blocked != null ? Math.max(0, blocked.get() - now) : 0;
+		if (wait > max) throw reject(host, wait);
+		final List<Bucket> reserved = new ArrayList<>(2);
+		for (final Rule rule : rules) if (rule.matches(host, path)) {
+			final Bucket bucket = bucketOf(rule, host);
+			final long w = bucket.reserve(now, max);
+			if (w < 0) {
+				for (final Bucket b : reserved) b.refund();
+				throw reject(host, bucket.waitFor(now));
+			}
+			reserved.add(bucket);
+			wait = Math.max(wait, w);
+		}
+
+		// Wait
+		if (wait <= 0) return;
+		delayed.incrementAndGet();
+		try {
+			Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+		} catch (InterruptedException x) {
+			for (final Bucket b : reserved) b.refund();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Canceled while waiting for rate limit");
+		}
+	}
+
+	/** Holds back requests to a host, after a 429 or 503 response with a Retry-After header */
+	void onRetryAfter(final String host, final String retryAfter) {
+		if (!honorRetryAfter) return;
+		final long delay = RequestRetryPolicy.parseRetryAfter(retryAfter);
+		if (delay <= 0) return;
+		final long until = System.nanoTime() + delay * 1000000L;
+		AtomicLong blocked = blockedUntil.get(host);
+		if (blocked == null) {
+			final AtomicLong created = new AtomicLong(until);
+			blocked = blockedUntil.putIfAbsent(host, created);
+			if (blocked == null) return;
+		}
+		for (long current = blocked.get(); current - until < 0 && !blocked.compareAndSet(current, until); current = blocked.get()) { }
+	}
+
+	private RateLimitException reject(final String host, final long waitNanos) {
+		rejected.incrementAndGet();
+		return new RateLimitException(host, waitNanos / 1000000L);
+	}
+
+	private Bucket bucketOf(final Rule rule, final String host) {
+		final String key = rule.pattern + " " + host;
+		Bucket bucket = buckets.get(key);
+		if (bucket == null) {
+			final Bucket created = new Bucket(rule);
+			bucket = buckets.putIfAbsent(key, created);
+			if (bucket == null) bucket = created;
+		}
+		return bucket;
+	}
+
+	private void clearBuckets(final String pattern) {
+		for (final String key : buckets.keySet()) if (key.startsWith(pattern + " ")) buckets.remove(key);
+	}
+
+	/** A limit for a host pattern and optional path prefix */
+	private static class Rule {
+
+		private final String pattern;
+		private final String host;
+		private final String pathPrefix;
+		private final double ratePerNano;
+		private final int burst;
+
+		private Rule(final String pattern, final double requestsPerSecond, final int burst) {
+			this.pattern = pattern.toLowerCase(Locale.US);
+			final int slash = this.pattern.indexOf('/');
+			this.host = slash >= 0 ? this.pattern.substring(0, slash) : this.pattern;
+			this.pathPrefix = slash >= 0 ? pattern.substring(slash) : null;
+			this.ratePerNano = requestsPerSecond / 1e9;
+			this.burst = burst;
+		}
+
+		private boolean matches(final String host, final String path) {
+			final boolean hostMatches = this.host.startsWith("*.") ? host.endsWith(this.host.substring(1)) || host.equals(this.host.substring(2)) : host.equals(this.host);
+			return hostMatches && (pathPrefix == null || path.startsWith(pathPrefix));
+		}
+
+	}
+
+	/** A token bucket, tokens can go negative to reserve future tokens for waiting requests */
+	private static class Bucket {
+
+		private final Rule rule;
+		private double tokens;
+		private long refilledAt = System.nanoTime();
+
+		private Bucket(final Rule rule) {
+			this.rule = rule;
+			this.tokens = rule.burst;
+		}
+
+		/** Reserves a token, returning nanoseconds to wait for it, or -1 if more than the max without reserving it */
+		private synchronized long reserve(final long now, final long max) {
+			refill(now);
+			final long wait = waitFor(now);
+			if (wait > max) return -1;
+			tokens -= 1;
+			return wait;
+		}
+
+		private synchronized void refund() {
+			tokens = Math.min(rule.burst, tokens + 1);
+		}
+
+		/** Returns nanoseconds before a token is available */
+		private synchronized long waitFor(final long now) {
+			refill(now);
+			return tokens >= 1 ? 0 : (long)Math.ceil((1 - tokens) / rule.ratePerNano);
+		}
+
+		private void refill(final long now) {
+			if (now - refilledAt <= 0) return;
+			tokens = Math.min(rule.burst, tokens + (now - refilledAt) * rule.ratePerNano);
+			refilledAt = now;
+		}
+
+	}
+
+	/** Thrown when a request is not sent because it would wait too long for the rate limit */
+	public static class RateLimitException extends IOException {
+
+		private final String host;
+		private final long retryIn;
+
+		private RateLimitException(final String host, final long retryIn) {
+			super("Rate limit for " + host + ", retry in " + retryIn + " ms");
+			this.host = host;
+			this.retryIn = retryIn;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		/** Returns the milliseconds before a request would be let through */
+		public long getRetryIn() {
+			return retryIn;
+		}
+
+	}
+
+}
@@ -0,0 +1,271 @@
+package com.lorenzostanco.utils;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Retries failed requests with exponential backoff and jitter, and fails fast with a per-host
+ * circuit breaker while a host keeps failing. By default only idempotent methods are retried,
+ * on connection errors and on 408, 429, 500, 502, 503 and 504 responses.
+ * Set it on a single {@link Request} with setRetryPolicy(), or on all of them (and on the sync
+ * helpers too) with {@link #setDefault(RequestRetryPolicy)}. Listeners implementing
+ * {@link Request.IRetryListener} are notified of retries and of circuit state changes.
+ *
+ * <pre>
+ * RequestRetryPolicy.setDefault(new RequestRetryPolicy().setMaxAttempts(4).setCircuitBreaker(5, 30000));
+ * </pre>
+ */
+@SuppressWarnings({ "unused", "Convert2Lambda", "Anonymous2MethodRef", "RedundantSuppression" })
+public final class RequestRetryPolicy {
+
+	public final static int DEFAULT_MAX_ATTEMPTS = 3;
+	public final static long DEFAULT_BASE_DELAY = 500;
+	public final static long DEFAULT_MAX_DELAY = 10000;
+
+	/** State of the circuit breaker of a host */
+	public enum CircuitState {
+		/** Requests go through normally */
+		CLOSED,
+		/** Requests fail immediately, the host is considered down */
+		OPEN,
+		/** A single trial request is let through to check if the host is up again */
+		HALF_OPEN
+	}
+
+	private static RequestRetryPolicy defaultPolicy = null;
+
+	// Retry options
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long baseDelay = DEFAULT_BASE_DELAY;
+	private long maxDelay = DEFAULT_MAX_DELAY;
+	private boolean retryNonIdempotent = false;
+	private final Set<Integer> retryableStatusCodes = new HashSet<>(Arrays.asList(408, 429, 500, 502, 503, 504));
+	private final Set<Class<? extends Exception>> retryableExceptions = new HashSet<>(Arrays.<Class<? extends Exception>>asList(SocketException.class, SocketTimeoutException.class, UnknownHostException.class));
+
+	// Circuit breaker options, disabled if threshold is 0
+	private int circuitFailureThreshold = 0;
+	private long circuitOpenDuration = 0;
+
+	// Circuits per host, guarded by themselves
+	private final Map<String, Circuit> circuits = new HashMap<>();
+
+	private final Random random = new Random();
+
+	/** Returns the policy used by all requests that don't set their own, and by sync helpers, NULL if none */
+	public static synchronized RequestRetryPolicy getDefault() {
+		return defaultPolicy;
+	}
+
+	/** Sets the policy used by all requests that don't set their own, and by sync helpers, NULL to never retry */
+	public static synchronized void setDefault(final RequestRetryPolicy policy) {
+		defaultPolicy = policy;
+	}
+
+	/** Sets the max number of attempts, including the first one
+	 * @return This object, for chaining */
+	public RequestRetryPolicy setMaxAttempts(final int maxAttempts) {
+		if (maxAttempts < 1) throw new IllegalArgumentException("Max attempts must be at least 1");
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/** Sets the backoff: the delay before the n-th retry is a random value between 0 and
+	 * <code>baseDelay * 2^(n-1)</code>, capped to <code>maxDelay</code>. A Retry-After longer than that is honored in full, while
+	 * responses asking to wait more than <code>maxDelay</code> are not retried at all.
+	 * @param baseDelay Delay in milliseconds
+	 * @param maxDelay Delay in milliseconds
+	 * @return This object, for chaining */
+	public RequestRetryPolicy setBackoff(final long baseDelay, final long maxDelay) {
+		this.baseDelay = Math.max(0, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+		return this;
+	}
+
+	/** Sets the response status codes that can be retried
+	 * @return This object, for chaining */
+	public RequestRetryPolicy setRetryableStatusCodes(final Integer... statusCodes) {
+		this.retryableStatusCodes.clear();
+		this.retryableStatusCodes.addAll(Arrays.asList(statusCodes));
+		return this;
+	}
+
+	/** Sets the exceptions (and their subclasses) that can be retried
+	 * @return This object, for chaining */
+	@SafeVarargs public final RequestRetryPolicy setRetryableExceptions(final Class<? extends Exception>... exceptions) {
+		this.retryableExceptions.clear();
+		this.retryableExceptions.addAll(Arrays.asList(exceptions));
+		return this;
+	}
+
+	/** Allows to retry also non-idempotent methods like POST, default is FALSE
+	 * @return This object, for chaining */
+	public RequestRetryPolicy setRetryNonIdempotent(final boolean retryNonIdempotent) {
+		this.retryNonIdempotent = retryNonIdempotent;
+		return this;
+	}
+
+	/** Enables the per-host circuit breaker: after some consecutive failures to a host, requests to that host
+	 * fail immediately for a while, then a single trial request decides whether to close the circuit again
+	 * @param failureThreshold Consecutive failures to open the circuit, 0 to disable the circuit breaker
+	 * @param openDuration Milliseconds before letting a trial request through
+	 * @return This object, for chaining */
+	public RequestRetryPolicy setCircuitBreaker(final int failureThreshold, final long openDuration) {
+		this.circuitFailureThreshold = Math.max(0, failureThreshold);
+		this.circuitOpenDuration = Math.max(0, openDuration);
+		return this;
+	}
+
+	/** Returns the circuit state of a host */
+	public CircuitState getCircuitState(final String host) {
+		synchronized (circuits) {
+			final Circuit circuit = circuits.get(host.toLowerCase(Locale.US));
+			return circuit != null ? circuit.state : CircuitState.CLOSED;
+		}
+	}
+
+	/** Closes all circuits, e.g. when connectivity changes */
+	public void resetCircuits() {
+		synchronized (circuits) {
+			circuits.clear();
+		}
+	}
+
+	/** Throws if the circuit of a host is open, otherwise lets the request through (moving to half-open if it's time for a trial) */
+	void checkCircuit(final Request.Call call, final String host) throws CircuitOpenException {
+		if (circuitFailureThreshold <= 0) return;
+		CircuitState changed = null;
+		synchronized (circuits) {
+			final Circuit circuit = circuits.get(host);
+			if (circuit == null || circuit.state == CircuitState.CLOSED) return;
+			final long now = System.currentTimeMillis();
+			if (now < circuit.openedAt + circuitOpenDuration) throw new CircuitOpenException(host, circuit.openedAt + circuitOpenDuration - now);
+			if (circuit.state == CircuitState.OPEN) changed = CircuitState.HALF_OPEN;
+			circuit.state = CircuitState.HALF_OPEN;
+			circuit.openedAt = now; // Another trial after a while, if this one never ends
+		}
+		if (changed != null) call.notifyCircuitStateChange(host, changed);
+	}
+
+	/** Records a successful response from a host, closing its circuit */
+	void onSuccess(final Request.Call call, final String host) {
+		if (circuitFailureThreshold <= 0) return;
+		final boolean changed;
+		synchronized (circuits) {
+			final Circuit circuit = circuits.remove(host);
+			changed = circuit != null && circuit.state != CircuitState.CLOSED;
+		}
+		if (changed) call.notifyCircuitStateChange(host, CircuitState.CLOSED);
+	}
+
+	/** Records a failure, and returns the delay before the next attempt or -1 if it must not be retried */
+	long onFailure(final Request.Call call, final String host, final int attempt, final IOException e) {
+		final boolean retryable = isRetryable(e);
+
+		// A response the host meant, like a 404, proves it's up: success for the circuit, also for a half-open trial
+		if (!retryable && e instanceof Request.StatusException) onSuccess(call, host);
+
+		// Count host failures, opening the circuit if too many (or if the half-open trial failed, retryable or not)
+		else if (circuitFailureThreshold > 0) {
+			boolean opened = false;
+			synchronized (circuits) {
+				Circuit circuit = circuits.get(host);
+				if (retryable || circuit != null && circuit.state == CircuitState.HALF_OPEN) {
+					if (circuit == null) circuits.put(host, circuit = new Circuit());
+					circuit.failures++;
+					if (circuit.state == CircuitState.HALF_OPEN || circuit.state == CircuitState.CLOSED && circuit.failures >= circuitFailureThreshold) {
+						circuit.state = CircuitState.OPEN;
+						circuit.openedAt = System.currentTimeMillis();
+						opened = true;
+					}
+				}
+			}
+			if (opened) call.notifyCircuitStateChange(host, CircuitState.OPEN);
+		}
+
+		// Retry?
+		if (!retryable || attempt >= maxAttempts) return -1;
+		if (!retryNonIdempotent && !isIdempotent(call.getRequestMethod())) return -1;
+
+		// Full jitter backoff, but never earlier than Retry-After, giving up if the host asks to wait longer than the max delay
+		final long retryAfter = e instanceof Request.StatusException ? parseRetryAfter(((Request.StatusException)e).getHeader("Retry-After")) : -1;
+		if (retryAfter > maxDelay) return -1;
+		final long cap = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+		final long delay;
+		synchronized (random) {
+			delay = cap > 0 ? (long)(random.nextDouble() * cap) : 0;
+		}
+		return Math.max(delay, retryAfter);
+
+	}
+
+	/** Returns TRUE if the exception is a retryable status code or one of the retryable exceptions */
+	private boolean isRetryable(final IOException e) {
+		if (e instanceof CircuitOpenException) return false;
+		if (e instanceof Request.StatusException) return retryableStatusCodes.contains(((Request.StatusException)e).getStatus());
+		for (final Class<? extends Exception> c : retryableExceptions) if (c.isInstance(e)) return true;
+		return false;
+	}
+
+	/** Returns TRUE for methods that can be safely repeated */
+	private static boolean isIdempotent(final String method) {
+		final String m = method.toUpperCase(Locale.US);
+		return m.equals("GET") || m.equals("HEAD") || m.equals("PUT") || m.equals("DELETE") || m.equals("OPTIONS") || m.equals("TRACE");
+	}
+
+	/** Parses a Retry-After header, in seconds or as HTTP date, returning milliseconds or -1 */
+	static long parseRetryAfter(final String retryAfter) {
+		if (retryAfter == null) return -1;
+		try {
+			return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+		} catch (NumberFormatException x) {
+			try {
+				final Date date = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US).parse(retryAfter.trim());
+				return Math.max(0, date.getTime() - System.currentTimeMillis());
+			} catch (Exception y) {
+				return -1;
+			}
+		}
+	}
+
+	/** Circuit breaker state of a host */
+	private static class Circuit {
+		private CircuitState state = CircuitState.CLOSED;
+		private int failures = 0;
+		private long openedAt = 0;
+	}
+
+	/** Thrown when a request is not sent because the circuit of its host is open */
+	public static class CircuitOpenException extends IOException {
+
+		private final String host;
+		private final long retryIn;
+
+		private CircuitOpenException(final String host, final long retryIn) {
+			super("Circuit open for " + host + ", retry in " + retryIn + " ms");
+			this.host = host;
+			this.retryIn = retryIn;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		/** Returns the milliseconds before a trial request will be let through */
+		public long getRetryIn() {
+			return retryIn;
+		}
+
+	}
+
+}
@@ -0,0 +1,55 @@
+package com.lorenzostanco.utils;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared daemon threads for the timers and the blocking chores of requests. A single thread runs the
+ * timers, like deadline expiries, which must be quick: cancelled timers are removed from the queue at
+ * once, so a deadline per request costs nothing when requests complete in time. Chores that may block,
+ * like closing the connections of cancelled or expired requests (a TLS close on a dead socket can take
+ * long), run on a separate pool of threads, created when needed, so they never delay a timer.
+ */
+final class RequestScheduler {
+
+	// Threads of the chores pool are kept for a while when idle
+	private final static long CHORES_KEEP_ALIVE = 30000;
+
+	private final static ScheduledThreadPoolExecutor timers = new ScheduledThreadPoolExecutor(1, threadFactory("RequestScheduler"));
+
+	private final static ThreadPoolExecutor chores = new ThreadPoolExecutor(0, Integer.MAX_VALUE, CHORES_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+		new SynchronousQueue<Runnable>(), threadFactory("RequestScheduler-chore"));
+
+	static {
+		timers.setRemoveOnCancelPolicy(true);
+	}
+
+	private RequestScheduler() { }
+
+	/** Runs a chore as soon as possible, on a thread of its own: it may block */
+	static void execute(final Runnable task) {
+		chores.execute(task);
+	}
+
+	/** Runs a timer task after a delay, on the single timer thread: it must not block
+	 * @param delay Delay in milliseconds
+	 * @return The future to cancel the task */
+	static ScheduledFuture<?> schedule(final Runnable task, final long delay) {
+		return timers.schedule(task, Math.max(0, delay), TimeUnit.MILLISECONDS);
+	}
+
+	private static ThreadFactory threadFactory(final String name) {
+		return new ThreadFactory() {
+			@Override public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+}
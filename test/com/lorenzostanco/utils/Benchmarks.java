@@ -0,0 +1,372 @@
+package com.lorenzostanco.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONObject;
+import org.xml.sax.InputSource;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Micro benchmarks of the hot paths that can run on a desktop JVM: requests through
+ * requestStringSync() against a local HTTP server, parsing the same payload as plain text, JSON
+ * and XML, response decoding with pooled buffers, cache keys and expiry, rate limiter buckets,
+ * image header probing, bitmap sample sizes, and the NDJSON and SSE line reader. Each benchmark is
+ * warmed up, then timed in rounds, and printed as a CSV line (name, ns per op, ops per second,
+ * bytes allocated per op by the calling thread, -1 if the JVM can't tell, and MB per second for
+ * benchmarks that move a payload), so runs can be saved and compared to spot regressions.
+ *
+ * <p>It's not plain Java: the library classes reference the Android SDK, so android.jar is needed
+ * to compile and to load them, though none of its classes is called. The android.jar org.json
+ * classes are stubs, so JSON parsing is only measured with a real org.json jar (org.json:json)
+ * before android.jar on the classpath, otherwise it's skipped with a note. The HTTP server is the
+ * one bundled with the JDK (com.sun.net.httpserver).</p>
+ *
+ * <pre>
+ * javac -encoding UTF-8 -cp android.jar -d out com/lorenzostanco/utils/*.java test/com/lorenzostanco/utils/Benchmarks.java
+ * java -cp out:json.jar:android.jar com.lorenzostanco.utils.Benchmarks test/fixtures/imageprobe [name prefix]
+ * </pre>
+ */
+@SuppressWarnings({ "unused", "Convert2Lambda", "Anonymous2MethodRef", "RedundantSuppression" })
+public final class Benchmarks {
+
+	private final static long WARMUP_NANOS = 1000000000L;
+	private final static long ROUND_NANOS = 500000000L;
+	private final static int ROUNDS = 5;
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+	// Results are added here, so the JIT can't drop the work
+	private static long sink = 0;
+
+	private Benchmarks() { }
+
+	public static void main(final String[] args) throws Exception {
+		final File fixtures = new File(args.length > 0 ? args[0] : "test/fixtures/imageprobe");
+		final String prefix = args.length > 1 ? args[1] : "";
+		final List<Benchmark> benchmarks = new ArrayList<>();
+		final HttpServer server = startServer();
+		addHttp(benchmarks, server);
+		addParse(benchmarks, prefix);
+		addCache(benchmarks);
+		addRateLimiter(benchmarks);
+		addDecode(benchmarks);
+		addImageProbe(benchmarks, fixtures);
+		addSampleSize(benchmarks);
+		addLineReader(benchmarks);
+		System.out.println("name,ns_per_op,ops_per_s,bytes_per_op,mb_per_s");
+		try {
+			for (final Benchmark b : benchmarks) if (b.name.startsWith(prefix)) b.measure();
+		} finally {
+			server.stop(0);
+			((ExecutorService)server.getExecutor()).shutdown();
+		}
+		if (sink == 42) System.out.println(); // Keeps the sink alive
+	}
+
+	/** Starts a local server answering /{size} with a JSON payload of that many bytes */
+	private static HttpServer startServer() throws IOException {
+		System.setProperty("sun.net.httpserver.nodelay", "true"); // Or small responses wait for the delayed ACK
+		final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newFixedThreadPool(2));
+		server.createContext("/", new HttpHandler() {
+			private final Map<Integer, byte[]> payloads = new TreeMap<>();
+			@Override public void handle(final HttpExchange exchange) throws IOException {
+				final int size = Integer.parseInt(exchange.getRequestURI().getPath().substring(1));
+				final byte[] payload;
+				synchronized (payloads) {
+					if (!payloads.containsKey(size)) payloads.put(size, json(size).getBytes(UTF_8));
+					payload = payloads.get(size);
+				}
+				exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+				exchange.sendResponseHeaders(200, payload.length);
+				final OutputStream out = exchange.getResponseBody();
+				out.write(payload);
+				out.close();
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	/** Request.requestStringSync(): a whole request per op, connection, headers, body and decoding; the server threads don't count in the allocations */
+	private static void addHttp(final List<Benchmark> benchmarks, final HttpServer server) {
+		final String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+		for (final int size : new int[] { 1024, 64 * 1024, 1024 * 1024, 10 * 1024 * 1024 }) {
+			final String url = base + size;
+			benchmarks.add(new Benchmark(size < 1024 * 1024 ? "http.sync." + size / 1024 + "k" : "http.sync." + size / 1024 / 1024 + "m", size) {
+				@Override void run() throws IOException {
+					sink += Request.requestStringSync(url, null, "GET", null).length();
+				}
+			});
+		}
+	}
+
+	/** Request.PlainText, JSON and XML: decoding and parsing the same payload, as each client does after reading the response */
+	private static void addParse(final List<Benchmark> benchmarks, final String prefix) throws Exception {
+		final boolean withJSON = isJSONAvailable();
+		if (!withJSON && "parse.json".startsWith(prefix)) System.err.println("Skipping parse.json: org.json is missing or a stub, put a real org.json jar before android.jar");
+		for (final int size : new int[] { 1024, 64 * 1024, 1024 * 1024 }) {
+			final byte[] json = json(size).getBytes(UTF_8);
+			final byte[] xml = xml(size).getBytes(UTF_8);
+			benchmarks.add(new Benchmark("parse.plaintext." + size / 1024 + "k", json.length) {
+				@Override void run() throws IOException {
+					sink += Request.readString(new ByteArrayInputStream(json), UTF_8, json.length).length();
+				}
+			});
+			if (withJSON) benchmarks.add(new Benchmark("parse.json." + size / 1024 + "k", json.length) {
+				@Override void run() throws Exception {
+					sink += new JSONObject(Request.readString(new ByteArrayInputStream(json), UTF_8, json.length)).hashCode();
+				}
+			});
+			benchmarks.add(new Benchmark("parse.xml." + size / 1024 + "k", xml.length) {
+				@Override void run() throws Exception {
+					final StringReader reader = new StringReader(Request.readString(new ByteArrayInputStream(xml), UTF_8, xml.length));
+					sink += Request.XML.getDocumentBuilder().parse(new InputSource(reader)).getDocumentElement().getChildNodes().getLength();
+				}
+			});
+		}
+	}
+
+	/** Whether org.json actually parses, the android.jar classes are stubs that do nothing or throw */
+	private static boolean isJSONAvailable() {
+		try {
+			return "1".equals(new JSONObject("{\"a\":1}").optString("a", null));
+		} catch (Exception | LinkageError x) {
+			return false;
+		}
+	}
+
+	/** A JSON object of about the given size, a list of items, mostly ASCII with some multi-byte chars */
+	private static String json(final int size) {
+		final StringBuilder text = new StringBuilder(size + 64).append("{\"items\":[");
+		for (int i = 0; text.length() < size - 2; i++) text.append(i > 0 ? "," : "").append("{\"id\":").append(i).append(",\"name\":\"perché così è\"}");
+		return text.append("]}").toString();
+	}
+
+	/** The same items of json(), as a XML document of about the given size */
+	private static String xml(final int size) {
+		final StringBuilder text = new StringBuilder(size + 64).append("<items>");
+		for (int i = 0; text.length() < size - 8; i++) text.append("<item id=\"").append(i).append("\" name=\"perché così è\"/>");
+		return text.append("</items>").toString();
+	}
+
+	/** RequestCache: lookup of an URL, hashing it to its key, and expiration of response headers */
+	private static void addCache(final List<Benchmark> benchmarks) throws IOException {
+		final File directory = Files.createTempDirectory("cache-benchmark").toFile();
+		directory.deleteOnExit();
+		final RequestCache cache = new RequestCache(directory, 1024 * 1024);
+		final String[] urls = new String[64];
+		for (int i = 0; i < urls.length; i++) urls[i] = "https://api.example.com/v1/items?page=" + i + "&sort=date&lang=it";
+		benchmarks.add(new Benchmark("cache.key") {
+			private int i = 0;
+			@Override void run() {
+				sink += cache.get(urls[i++ & 63]) == null ? 1 : 0;
+			}
+		});
+		final HttpURLConnection maxAge = new HeadersConnection("Cache-Control", "public, max-age=600", "Age", "30");
+		benchmarks.add(new Benchmark("cache.expiry.maxage") {
+			@Override void run() {
+				sink += RequestCache.expirationOf(maxAge, 1000000L);
+			}
+		});
+		final HttpURLConnection expires = new HeadersConnection("Expires", "Thu, 01 Dec 2033 16:00:00 GMT", "Date", "Thu, 01 Dec 2033 15:50:00 GMT");
+		benchmarks.add(new Benchmark("cache.expiry.expires") {
+			@Override void run() {
+				sink += RequestCache.expirationOf(expires, 1000000L);
+			}
+		});
+	}
+
+	/** RequestRateLimiter: matching rules and taking tokens, with limits too high to ever wait */
+	private static void addRateLimiter(final List<Benchmark> benchmarks) {
+		final RequestRateLimiter limiter = new RequestRateLimiter()
+			.setLimit("api.example.com", 1e9, Integer.MAX_VALUE)
+			.setLimit("*.example.com/search", 1e9, Integer.MAX_VALUE)
+			.setLimit("cdn.example.org", 1e9, Integer.MAX_VALUE);
+		final String[] urls = { "https://api.example.com/v1/items", "https://www.example.com/search?q=x", "https://other.example.net/" };
+		benchmarks.add(new Benchmark("ratelimiter.acquire") {
+			private int i = 0;
+			@Override void run() throws IOException {
+				limiter.acquire(urls[i++ % urls.length]);
+			}
+		});
+	}
+
+	/** Request.readString(): decoding responses with pooled buffers and decoders, mostly ASCII with some multi-byte chars */
+	private static void addDecode(final List<Benchmark> benchmarks) {
+		for (final int size : new int[] { 1024, 64 * 1024, 1024 * 1024 }) {
+			final StringBuilder text = new StringBuilder(size);
+			while (text.length() < size) text.append("{\"id\":").append(text.length()).append(",\"name\":\"perché così è\"}\n");
+			final byte[] body = text.toString().getBytes(UTF_8);
+			benchmarks.add(new Benchmark("bufferpool.decode." + size / 1024 + "k", body.length) {
+				@Override void run() throws IOException {
+					sink += Request.readString(new ByteArrayInputStream(body), UTF_8, body.length).length();
+				}
+			});
+		}
+	}
+
+	/** ImageProbe: headers of the test fixtures, from memory so that the disk doesn't count */
+	private static void addImageProbe(final List<Benchmark> benchmarks, final File fixtures) throws IOException {
+		final File[] files = fixtures.listFiles();
+		if (files == null) throw new IOException("Missing fixtures: " + fixtures);
+		Arrays.sort(files);
+		for (final File file : files) {
+			final byte[] image = Files.readAllBytes(file.toPath());
+			benchmarks.add(new Benchmark("imageprobe." + file.getName()) {
+				@Override void run() throws IOException {
+					sink += ImageProbe.probe(new ByteArrayInputStream(image)).getWidth();
+				}
+			});
+		}
+	}
+
+	/** BitmapLoader.calculateSampleSize(): photos and screenshots into thumbnails, with one or both sides given */
+	private static void addSampleSize(final List<Benchmark> benchmarks) {
+		final int[][] cases = {
+			{ 4032, 3024, 320, 240 }, { 3024, 4032, 0, 512 }, { 1920, 1080, 1080, 0 }, { 640, 480, 1280, 960 },
+			{ 12000, 8000, 256, 256 }, { 1080, 2400, 0, 0 }, { 800, 600, 799, 599 }, { 6000, 4000, 1500, 0 }
+		};
+		benchmarks.add(new Benchmark("bitmaploader.samplesize") {
+			private int i = 0;
+			@Override void run() {
+				final int[] c = cases[i++ & 7];
+				sink += BitmapLoader.calculateSampleSize(c[0], c[1], c[2], c[3]);
+			}
+		});
+	}
+
+	/** Request.LineReader: splitting NDJSON (LF) and SSE (CRLF) streams into lines */
+	private static void addLineReader(final List<Benchmark> benchmarks) {
+		final StringBuilder ndjson = new StringBuilder();
+		final StringBuilder sse = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			ndjson.append("{\"id\":").append(i).append(",\"type\":\"update\",\"value\":").append(i * 31).append("}\n");
+			sse.append("id: ").append(i).append("\r\nevent: update\r\ndata: {\"value\":").append(i * 31).append("}\r\n\r\n");
+		}
+		final String ndjsonText = ndjson.toString(), sseText = sse.toString();
+		benchmarks.add(new Benchmark("linereader.ndjson.1000") {
+			@Override void run() throws IOException {
+				final Request.LineReader lines = new Request.LineReader(new StringReader(ndjsonText), 1024 * 1024);
+				while (lines.readLine() != null) sink++;
+			}
+		});
+		benchmarks.add(new Benchmark("linereader.sse.1000") {
+			@Override void run() throws IOException {
+				final Request.LineReader lines = new Request.LineReader(new StringReader(sseText), 1024 * 1024);
+				while (lines.readLine() != null) sink++;
+			}
+		});
+	}
+
+	/** A benchmark: run() is a single operation, timed in batches */
+	private static abstract class Benchmark {
+
+		private final String name;
+		private final long payloadBytes;
+
+		private Benchmark(final String name) {
+			this(name, 0);
+		}
+
+		/** @param payloadBytes Bytes moved by each op, to print the throughput too */
+		private Benchmark(final String name, final long payloadBytes) {
+			this.name = name;
+			this.payloadBytes = payloadBytes;
+		}
+
+		abstract void run() throws Exception;
+
+		/** Warms up, then prints the median of the timed rounds */
+		private void measure() throws Exception {
+			final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+			long batch = 1;
+			while (System.nanoTime() < warmupEnd) {
+				for (long i = 0; i < batch; i++) run();
+				if (batch < (1 << 20)) batch *= 2;
+			}
+			final double[] nanosPerOp = new double[ROUNDS];
+			final double[] bytesPerOp = new double[ROUNDS];
+			for (int r = 0; r < ROUNDS; r++) {
+				final long allocatedStart = allocatedBytes();
+				final long start = System.nanoTime();
+				long ops = 0, now;
+				do {
+					for (long i = 0; i < batch; i++) run();
+					ops += batch;
+					now = System.nanoTime();
+				} while (now - start < ROUND_NANOS);
+				final long allocated = allocatedBytes();
+				nanosPerOp[r] = (double)(now - start) / ops;
+				bytesPerOp[r] = allocatedStart >= 0 && allocated >= 0 ? (double)(allocated - allocatedStart) / ops : -1;
+			}
+			Arrays.sort(nanosPerOp);
+			Arrays.sort(bytesPerOp);
+			final double median = nanosPerOp[ROUNDS / 2];
+			final String throughput = payloadBytes > 0 ? String.format(java.util.Locale.US, "%.1f", payloadBytes * 1e9 / median / (1024 * 1024)) : "";
+			System.out.println(String.format(java.util.Locale.US, "%s,%.1f,%.0f,%.0f,%s", name, median, 1e9 / median, bytesPerOp[ROUNDS / 2], throughput));
+		}
+
+	}
+
+	/** Bytes allocated so far by the current thread, -1 if the JVM doesn't support it */
+	private static long allocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+		try {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		} catch (UnsupportedOperationException x) {
+			return -1;
+		}
+	}
+
+	/** A connection that only answers with some response headers, never connected */
+	private static final class HeadersConnection extends HttpURLConnection {
+
+		private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+		private HeadersConnection(final String... headers) throws IOException {
+			super(new URL("https://api.example.com/"));
+			for (int i = 0; i + 1 < headers.length; i += 2) this.headers.put(headers[i], headers[i + 1]);
+		}
+
+		@Override public String getHeaderField(final String name) {
+			return headers.get(name);
+		}
+
+		@Override public void connect() { }
+
+		@Override public void disconnect() { }
+
+		@Override public boolean usingProxy() {
+			return false;
+		}
+
+		@Override public InputStream getInputStream() throws IOException {
+			throw new IOException("Not connected");
+		}
+
+	}
+
+}
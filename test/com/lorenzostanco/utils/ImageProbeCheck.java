@@ -0,0 +1,72 @@
+package com.lorenzostanco.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Verifica ImageProbe sui file di test in test/fixtures/imageprobe, con la JVM e senza Android: il nome
+ * di ogni file riporta le dimensioni attese. I JPEG hanno segmenti APP1 EXIF (big e little endian), APP2 e
+ * COM prima del SOF; i WebP sono solo intestazioni VP8, VP8L e VP8X.
+ *
+ * <pre>
+ * javac -encoding UTF-8 -d out com/lorenzostanco/utils/ImageProbe.java test/com/lorenzostanco/utils/ImageProbeCheck.java
+ * java -cp out com.lorenzostanco.utils.ImageProbeCheck test/fixtures/imageprobe
+ * </pre>
+ */
+public final class ImageProbeCheck {
+
+	private static int failures = 0;
+
+	private ImageProbeCheck() { }
+
+	public static void main(final String[] args) {
+		final File dir = new File(args.length > 0 ? args[0] : "test/fixtures/imageprobe");
+
+		// Un file alla volta
+		check(dir, "12x8-exif-be-6.jpg", ImageProbe.JPEG, 12, 8, 6);
+		check(dir, "12x8-exif-le-8.jpg", ImageProbe.JPEG, 12, 8, 8);
+		check(dir, "7x5.png", ImageProbe.PNG, 7, 5, 1);
+		check(dir, "9x4.gif", ImageProbe.GIF, 9, 4, 1);
+		check(dir, "321x123-vp8.webp", ImageProbe.WEBP, 321, 123, 1);
+		check(dir, "320x200-vp8l.webp", ImageProbe.WEBP, 320, 200, 1);
+		check(dir, "1000x500-vp8x.webp", ImageProbe.WEBP, 1000, 500, 1);
+
+		// Orientamento applicato
+		final ImageProbe.Info rotated = ImageProbe.probe(new File(dir, "12x8-exif-be-6.jpg").getPath());
+		expect(rotated != null && rotated.getOrientedWidth() == 8 && rotated.getOrientedHeight() == 12, "oriented size of 12x8-exif-be-6.jpg");
+
+		// File mancanti o non immagini
+		expect(ImageProbe.probe(new File(dir, "missing.png").getPath()) == null, "missing file");
+		expect(ImageProbe.getSize(new File(dir, "missing.png").getPath())[0] == -1, "size of missing file");
+
+		// In parallelo, più file della soglia di un task, nello stesso ordine
+		final String[] names = dir.list();
+		final List<String> paths = new ArrayList<>();
+		for (int i = 0; names != null && i < 10; i++) for (final String name : names) paths.add(new File(dir, name).getPath());
+		paths.add(new File(dir, "missing.png").getPath());
+		final List<ImageProbe.Info> infos = ImageProbe.probeAll(paths);
+		expect(infos.size() == paths.size() && infos.get(infos.size() - 1) == null, "probeAll size and missing file");
+		for (int i = 0; i < paths.size() - 1; i++) {
+			final ImageProbe.Info info = infos.get(i);
+			final String name = new File(paths.get(i)).getName();
+			expect(info != null && name.startsWith(info.getWidth() + "x" + info.getHeight()), "probeAll " + name + ": " + info);
+		}
+
+		System.out.println(failures == 0 ? "OK" : failures + " FAILED");
+		if (failures > 0) System.exit(1);
+	}
+
+	private static void check(final File dir, final String name, final String mimeType, final int width, final int height, final int orientation) {
+		final ImageProbe.Info info = ImageProbe.probe(new File(dir, name).getPath());
+		expect(info != null && info.getMimeType().equals(mimeType) && info.getWidth() == width && info.getHeight() == height && info.getOrientation() == orientation,
+			name + ": " + info);
+	}
+
+	private static void expect(final boolean condition, final String message) {
+		if (condition) return;
+		failures++;
+		System.out.println("FAILED " + message);
+	}
+
+}